@@ -0,0 +1,153 @@
+import java.io.*;
+import java.util.*;
+
+/** Counts a MSA for the training in one pass over the file (streaming), so
+	the MSA has never to be in memory: the rows of the alignment are added
+	part by part (row-major, like they are in the file), the gaps & emissions
+	are counted per column at once. The transitions depend on the
+	matchpositions, which are only known at the end, but a state path only
+	depends on the gaps of the sequence. So a gap mask (1 bit per column) is
+	kept per sequence and the transitions are counted out of the masks at the
+	end (1/8 of the memory of the MSA as Latin-1 String).
+	The counts are the same as the ones of RNASequenceTrain.train(). Besides
+	'-' the gap characters '.', '_' & '~' of the Stockholm format are
+	allowed, lower case bases are counted like upper case ones.
+	Not thread-safe.*/
+final class AlignmentCounter {
+
+	//encoding of the characters: A, C, G, U -> 0..3, gap -> 4, else -1
+	private static final byte GAP = 4;
+	private static final byte[] code = new byte[128];
+	static {
+		Arrays.fill(code, (byte) -1);
+		code['A'] = 0; code['C'] = 1; code['G'] = 2; code['U'] = 3;
+		code['a'] = 0; code['c'] = 1; code['g'] = 2; code['u'] = 3;
+		code['-'] = GAP; code['.'] = GAP; code['_'] = GAP; code['~'] = GAP;
+	}
+
+	//number of gaps [column] & emissions [column * 4 + base]
+	private int[] gaps = new int[1024];
+	private int[] ecounts = new int[4 * 1024];
+	//gap masks of the sequences (bit j of a mask: gap in column j) and the
+	//number of columns of each sequence until now
+	private final ArrayList<long[]> masks = new ArrayList<long[]>();
+	private int[] lengths = new int[16];
+
+
+
+	/** Counts a MSA out of a file in the FASTA format (the lines of a
+		sequence may be wrapped) or in the Stockholm format.
+		@param path Path to the file
+		@return Counts of the MSA*/
+	static CountStore count(String path) throws IOException {
+		AlignmentCounter c = new AlignmentCounter();
+		if (StockholmReader.isStockholm(path))
+			try (StockholmReader r = new StockholmReader(path)) {
+				while (r.next())
+					c.add(r.index(), r.part(), r.length());
+			}
+		else
+			try (FastaReader r = new FastaReader(path)) {
+				for (int i = 0; r.next(); i++)
+					c.add(i, r.sequence(), r.length());
+			}
+		return c.finish();
+	}
+
+
+
+	/** Adds a part of an aligned sequence (behind the parts added before).
+		@param seq Number of the sequence (0, 1, .. in the order of the first
+			parts)
+		@param part Characters of the part
+		@param len Number of characters in part
+		@throws IllegalArgumentException If there is an invalid character*/
+	void add(int seq, byte[] part, int len) {
+		if (seq > masks.size())
+			throw new IllegalArgumentException("The sequence "+seq+" comes "
+				+"before the sequence "+masks.size());
+		if (seq == masks.size()) {
+			masks.add(new long[16]);
+			if (seq == lengths.length)
+				lengths = Arrays.copyOf(lengths, 2 * seq);
+		}
+
+		int start = lengths[seq], end = start + len;
+		if (end > gaps.length) {
+			int n = Math.max(end, 2 * gaps.length);
+			gaps = Arrays.copyOf(gaps, n);
+			ecounts = Arrays.copyOf(ecounts, 4 * n);
+		}
+		long[] mask = masks.get(seq);
+		if ((end + 63) / 64 > mask.length) {
+			mask = Arrays.copyOf(mask, Math.max((end + 63) / 64,
+				2 * mask.length));
+			masks.set(seq, mask);
+		}
+
+		for (int k = 0; k < len; k++) {
+			int j = start + k, c = part[k] & 0xff;
+			byte b = (c < 128) ? code[c] : -1;
+			if (b == GAP) {
+				gaps[j]++;
+				mask[j >>> 6] |= 1L << j;
+			}
+			else if (b >= 0)
+				ecounts[4 * j + b]++;
+			else
+				throw new IllegalArgumentException("The character "+(char) c
+					+" in sequence "+seq+" at position "+j+" is not valid");
+		}
+		lengths[seq] = end;
+	}
+
+
+
+	/** Finishes the counting: matchpositions (columns with less than 50%
+		gaps) and the transitions out of the gap masks.
+		@return Counts of the MSA
+		@throws IllegalArgumentException If the sequences have different
+			lengths*/
+	CountStore finish() {
+		int seqnr = masks.size();
+		if (seqnr == 0)
+			throw new IllegalArgumentException("The MSA has no sequences");
+		int cols = lengths[0];
+		for (int i = 0; i < seqnr; i++)
+			if (lengths[i] != cols)
+				throw new IllegalArgumentException("The sequence "+i+" has "
+					+lengths[i]+" columns and not "+cols);
+
+		//1. matchpositions
+		boolean[] isMatch = new boolean[cols];
+		int matnr = 0;
+		for (int j = 0; j < cols; j++)
+			if (2 * gaps[j] < seqnr) {
+				isMatch[j] = true;
+				matnr++;
+			}
+
+		//2. transitions out of the gap masks (same paths as train())
+		int[][] tcounts =
+			new int[matnr + 1][RNASequenceTrain.ST.values().length];
+		RNASequenceTrain.State[] p = new RNASequenceTrain.State[cols];
+		for (long[] mask : masks) {
+			for (int j = 0; j < cols; j++) {
+				boolean gap = (mask[j >>> 6] & (1L << j)) != 0;
+				if (isMatch[j])
+					p[j] = gap ? RNASequenceTrain.State.D
+						: RNASequenceTrain.State.M;
+				else
+					p[j] = gap ? null : RNASequenceTrain.State.I;
+			}
+			RNASequenceTrain.countPath(p, tcounts);
+		}
+
+		int[][] e = new int[cols][4];
+		for (int j = 0; j < cols; j++)
+			System.arraycopy(ecounts, 4 * j, e[j], 0, 4);
+		return new CountStore(isMatch, Arrays.copyOf(gaps, cols), e, tcounts,
+			seqnr);
+	}
+
+}
@@ -0,0 +1,327 @@
+import java.util.*;
+
+/** Banded Viterbi-Algorithm: only the cells right of the diagonal of the
+	best ungapped segment (MSV filter, j = i + d) are calculated, in row i the
+	columns lo(i) = i + d - w up to matnr with the band width w. The band is
+	open to the right, because the path has to end at column matnr and the
+	model allows long insertions there (Non-rRNA often run down a single
+	column near the end). Cells outside of the band are -inf. The values
+	inside of the band are calculated with the same recurrence (and order of
+	the additions & comparisons) as ViterbiKernel.
+	If the backtracked path touches the left edge of the band, the band is
+	doubled and everything is calculated again, until the path lies inside
+	or the band covers the whole matrix. Only fragments (at most half as long
+	as the model, the common case) with a significant diagonal (threshold of
+	the MSV filter) are banded, and only while the band has at most maxCells
+	cells; all other sequences are declined (NaN) and calculated by the
+	caller (full matrices or checkpoints, see ViterbiWorker), so the memory
+	stays bounded. So the result is the one of the full matrices with a
+	fraction of the cells for fragments. The rows of the band are saved with
+	an offset. An object must not be shared between threads.*/
+final class BandedViterbi {
+
+	//minimal automatic band width
+	static final int MIN_BAND = 64;
+
+	//short names for the states of the traceback
+	private static final int M = StatePath.M, I = StatePath.I,
+		D = StatePath.D;
+
+	//the trained model
+	private final PHMM model;
+	//band width (0 -> automatic, see processViterbi)
+	private final int band;
+	//maximal number of cells of a band
+	private final long maxCells;
+
+	//rows of the band: vM[i][j - lo[i]] (the same for the others & the
+	//traceback, see ViterbiKernel)
+	private double[][] vM, vI, vD;
+	private byte[][] bt;
+	//first & last column of the band in every row
+	private int[] lo;
+
+	//row for the MSV filter & the diagonal found by it
+	private final double[] h;
+	private final int[] diag = new int[1];
+
+	//number of calculated cells of the last sequence (all passes)
+	private long cells;
+
+
+
+	/** Creates the scratch space for the given model.
+		@param model Trained PHMM
+		@param band Band width, 0 -> max(MIN_BAND, matnr / 32)
+		@param maxCells Maximal number of cells of a band (larger bands are
+			declined, see processViterbi)*/
+	BandedViterbi(PHMM model, int band, long maxCells) {
+		if (band < 0)
+			throw new IllegalArgumentException("The band width must not be "
+				+"negative and not "+band);
+		this.model = model;
+		this.band = band;
+		this.maxCells = maxCells;
+		vM = vI = vD = new double[0][];
+		bt = new byte[0][];
+		lo = new int[0];
+		h = new double[model.matnr + 1];
+	}
+
+
+
+	/** Banded viterbi algorithm for an encoded testsequence, the band is
+		widened until the path does not touch its edge. The path can be
+		backtracked afterwards with backtrack(..).
+		@param dsq Encoded testsequence (see PackedSeq.codes)
+		@param len Length of the testsequence
+		@return Score of the viterbi path, NaN if the sequence is declined
+			(no fragment, no significant diagonal or the band would have more
+			than maxCells cells), then there is no path*/
+	double processViterbi(byte[] dsq, int len) {
+		int matnr = model.matnr;
+		int w = (band > 0) ? band : Math.max(MIN_BAND, matnr / 32);
+		cells = 0;
+		diag[0] = 0;
+
+		//covers most of the model -> no band, the path may skip a long
+		//prefix of the sequence over column 0 and come from the left
+		if (2L * len > matnr)
+			return Double.NaN;
+
+		double msv = ViterbiKernel.msv(model, dsq, len, h, diag);
+		cells = (long) len * matnr;		//for the MSV filter
+		//no significant diagonal (a null sequence reaches the log-odds x
+		//with one of its L * matnr beginnings with a probability of at most
+		//L * matnr * e^-x) -> no band, the path of a Non-rRNA can lie
+		//anywhere
+		if (msv < Math.log((double) Math.max(1, len) * matnr
+				/ FilterPipeline.DEFAULT_PMSV))
+			return Double.NaN;
+
+		while (true) {
+			if (bandCells(len, w, diag[0]) > maxCells)
+				return Double.NaN;
+			boolean full = fill(dsq, len, w, diag[0]);
+			if (full || !touchesEdge(len))
+				break;
+			w = 2 * w;		//too small -> again with the double band
+		}
+
+		return vM[len][matnr - lo[len]];
+	}
+
+
+
+	/** Number of cells of the band with the width w right of the diagonal d
+		(like fill(..), row 0 is complete).*/
+	private long bandCells(int len, int w, int d) {
+		int matnr = model.matnr;
+		long n = matnr + 1;
+		for (int i = 1; i <= len; i++)
+			n += matnr - Math.min(matnr, Math.max(1, i + d - w)) + 1;
+		return n;
+	}
+
+
+
+	/** Number of calculated cells of the last sequence (all passes & the
+		MSV filter, also if it was declined).*/
+	long cells() {
+		return cells;
+	}
+
+
+
+	/** Calculates all rows of the band right of the diagonal d with the
+		width w.
+		@return True, if the band covered the whole matrices*/
+	private boolean fill(byte[] dsq, int len, int w, int d) {
+		int matnr = model.matnr, cols = matnr + 1;
+		double NEGINF = Double.NEGATIVE_INFINITY;
+		boolean full = true;
+		ensure(len + 1);
+
+		//row 0 is a border row over all columns, the other rows go from
+		//i + d - w up to column matnr
+		lo[0] = 0;
+		for (int i = 1; i <= len; i++) {
+			lo[i] = Math.min(matnr, Math.max(1, i + d - w));
+			full &= (lo[i] == 1);
+			width(i, matnr - lo[i] + 1);
+		}
+		width(0, cols);
+		ViterbiKernel.firstRow(matnr, vM[0], vI[0], vD[0]);
+
+		double[] tMM = model.tMM, tIM = model.tIM, tDM = model.tDM;
+		double[] tMD = model.tMD, tID = model.tID, tDD = model.tDD;
+		double[] tMI = model.tMI, tII = model.tII, tDI = model.tDI;
+		double[] msc = model.msc, isc = model.isc;
+
+		for (int i = 1; i <= len; i++) {
+			int plo = lo[i-1], clo = lo[i];
+			double[] pM = vM[i-1], pI = vI[i-1], pD = vD[i-1];
+			double[] cM = vM[i], cI = vI[i], cD = vD[i];
+			byte[] b = bt[i];
+			int off = dsq[i-1] * cols;
+
+			//column lo - 1 of this row: border (column 0) or outside
+			double mLeft = NEGINF, iLeft = NEGINF;
+			double dLeft = (clo == 1) ? 0 : NEGINF;
+
+			for (int j = clo; j <= matnr; j++) {
+				double maximum, s;
+				int dr, cell;
+
+				//values of the previous row (-inf outside of its band)
+				double m1, i1, d1, m0, i0, d0;
+				if (j - 1 >= plo) {
+					m1 = pM[j-1-plo]; i1 = pI[j-1-plo]; d1 = pD[j-1-plo];
+				}
+				else {
+					m1 = NEGINF; i1 = NEGINF; d1 = NEGINF;
+				}
+				if (j >= plo) {
+					m0 = pM[j-plo]; i0 = pI[j-plo]; d0 = pD[j-plo];
+				}
+				else {
+					m0 = NEGINF; i0 = NEGINF; d0 = NEGINF;
+				}
+
+				//vM
+				maximum = - Double.MAX_VALUE; dr = M;
+				s = m1 + tMM[j];
+				if (maximum < s) { maximum = s; }
+				s = i1 + tIM[j];
+				if (maximum < s) { maximum = s; dr = I; }
+				s = d1 + tDM[j];
+				if (maximum < s) { maximum = s; dr = D; }
+				double m = msc[off + j] + maximum;
+				cM[j-clo] = m;
+				cell = dr;
+
+				//vI
+				maximum = - Double.MAX_VALUE; dr = M;
+				s = m0 + tMI[j];
+				if (maximum < s) { maximum = s; }
+				s = i0 + tII[j];
+				if (maximum < s) { maximum = s; dr = I; }
+				s = d0 + tDI[j];
+				if (maximum < s) { maximum = s; dr = D; }
+				double ins = isc[off + j] + maximum;
+				cI[j-clo] = ins;
+				cell |= dr << 2;
+
+				//vD: delete is 'silent' -> no emissionprobability
+				maximum = - Double.MAX_VALUE; dr = M;
+				s = mLeft + tMD[j];
+				if (maximum < s) { maximum = s; }
+				s = iLeft + tID[j];
+				if (maximum < s) { maximum = s; dr = I; }
+				s = dLeft + tDD[j];
+				if (maximum < s) { maximum = s; dr = D; }
+				cD[j-clo] = maximum;
+				b[j-clo] = (byte) (cell | dr << 4);
+
+				mLeft = m; iLeft = ins; dLeft = maximum;
+			}
+
+			cells += matnr - clo + 1;
+		}
+
+		return full;
+	}
+
+
+
+	/** Checks whether the viterbi path (or the path to vM at the end, that
+		gives the score) touches the left edge of the band, then the band was
+		too small.*/
+	private boolean touchesEdge(int len) {
+		int ter = terminalState(len);
+		return touchesEdge(len, ter) || (ter != M && touchesEdge(len, M));
+	}
+
+
+
+	/** Checks the path from the given terminating state.*/
+	private boolean touchesEdge(int len, int ter) {
+		int matnr = model.matnr;
+		int i = len, j = matnr;
+
+		while (i > 0 && j > 0) {
+			if (j <= lo[i] && lo[i] > 1)
+				return true;		//edge (not the border of the matrix)
+
+			int prev = ViterbiKernel.previous(bt[i][j - lo[i]], ter);
+			if (ter != D)
+				i--;
+			if (ter != I)
+				j--;
+			ter = prev;
+		}
+
+		return false;
+	}
+
+
+
+	/** Backtrack the viterbipath of the last sequence.
+		@param len Length of the last sequence
+		@param path Buffer for the path (same as the one of
+			ViterbiWorker.backtrack, if the path lies inside of the band)*/
+	void backtrack(int len, StatePath path) {
+		int ter = terminalState(len);
+		int i = len, j = model.matnr;
+		path.clear(len, j);
+
+		//path is collected from the end
+		while (i > 0 && j > 0) {
+			path.prepend(ter);
+			int prev = ViterbiKernel.previous(bt[i][j - lo[i]], ter);
+			if (ter != D)
+				i--;
+			if (ter != I)
+				j--;
+			ter = prev;
+		}
+
+		//no more characters -> deletions, no more columns -> insertions
+		path.prepend(D, j);
+		path.prepend(I, i);
+	}
+
+
+
+	/** Get the terminating state of the last sequence.*/
+	private int terminalState(int len) {
+		int k = model.matnr - lo[len];
+		return ViterbiKernel.terminalState(vM[len][k], vI[len][k], vD[len][k]);
+	}
+
+
+
+	/** Makes sure, that there are rows rows.*/
+	private void ensure(int rows) {
+		if (lo.length < rows) {
+			vM = Arrays.copyOf(vM, rows);
+			vI = Arrays.copyOf(vI, rows);
+			vD = Arrays.copyOf(vD, rows);
+			bt = Arrays.copyOf(bt, rows);
+			lo = new int[rows];
+		}
+	}
+
+
+
+	/** Makes sure, that row i has at least width columns.*/
+	private void width(int i, int width) {
+		if (vM[i] == null || vM[i].length < width) {
+			vM[i] = new double[width];
+			vI[i] = new double[width];
+			vD[i] = new double[width];
+			bt[i] = new byte[width];
+		}
+	}
+
+}
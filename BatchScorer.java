@@ -0,0 +1,257 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/** Scores batches of testsequences in parallel on a ForkJoinPool. Every
+	thread of the pool gets its own ViterbiWorker (scratch space), while the
+	trained PHMM is shared. The results are written into arrays at the index of
+	the sequence, so the order of the input is kept.*/
+final class BatchScorer {
+
+	//number of match nodes of the model (for the DP cells)
+	private final int matnr;
+	//pool for the workers
+	private final ForkJoinPool pool;
+	//one worker per thread of the pool
+	private final ThreadLocal<ViterbiWorker> workers;
+	//band width for the full mode (-1 -> not banded, 0 -> automatic)
+	private volatile int band = -1;
+
+	//thresholds for the matchhit-method
+	private final double qthr, lthr;
+	//decision rRNA / Non-rRNA out of the viterbi path
+	private PathStats.Classifier classifier;
+	//true, if only the scores are needed (no matchhit-method)
+	private boolean scoreOnly;
+	//true -> forward scores & posterior decoding instead of viterbi
+	private boolean forward;
+	//number of sequences a worker scores at once (score-only mode)
+	private final int lanes;
+	//filters in front of the full viterbi algorithm (null -> no filters)
+	private FilterPipeline pipeline;
+
+
+
+	/** Creates a scorer with the given number of threads.
+		@param model Trained PHMM
+		@param threads Number of threads (at least 1)
+		@param maxCells Maximal number of cells of the full viterbi matrices
+			per thread, longer sequences are processed with checkpoints
+		@param kernel Kernel of the score-only mode (see ViterbiWorker)
+		@param qthr Threshold for Q of the matchhit-method
+		@param lthr Threshold for L of the matchhit-method*/
+	BatchScorer(PHMM model, int threads, long maxCells,
+			ViterbiWorker.Kernel kernel, double qthr, double lthr) {
+		if (threads < 1)
+			throw new IllegalArgumentException("The number of threads must be "
+				+"at least 1 and not "+threads);
+		this.matnr = model.matnr;
+		this.pool = new ForkJoinPool(threads);
+		this.workers = ThreadLocal.withInitial(
+			() -> {
+				ViterbiWorker w = new ViterbiWorker(model, maxCells, kernel);
+				if (band >= 0)
+					w.setBand(band);
+				return w;
+			});
+		this.lanes = (kernel == ViterbiWorker.Kernel.INTERSEQ) 
+			? InterSeqViterbi.lanes() : 1;
+		this.qthr = qthr;
+		this.lthr = lthr;
+		this.classifier = PathStats.matchhit(qthr, lthr);
+	}
+
+
+
+	/** Switches the score-only mode on or off. In this mode only the viterbi
+		scores are calculated (two rows per matrix, no backtracking) and isrRNA
+		is always false.*/
+	void setScoreOnly(boolean scoreOnly) {
+		this.scoreOnly = scoreOnly;
+	}
+
+
+
+	/** Switches the Forward-Algorithm on or off: the scores are forward
+		scores (sum over all paths, see ViterbiWorker.forward) and the
+		matchhit-method uses the posterior match probabilities
+		(ViterbiWorker.posteriorMatchhit) instead of the viterbi path. The
+		SIMD kernels and the filter pipeline are not used then.*/
+	void setForward(boolean forward) {
+		this.forward = forward;
+	}
+
+
+
+	/** Sets the classifier of the viterbi paths (default: matchhit-method
+		with qthr & lthr). Not used by the filter pipeline and --forward
+		(posterior decoding).*/
+	void setClassifier(PathStats.Classifier classifier) {
+		this.classifier = classifier;
+	}
+
+
+
+	/** Switches the banded viterbi algorithm for the full mode on, must be
+		called before the first batch.
+		@param band Band width (0 -> automatic, see BandedViterbi)*/
+	void setBand(int band) {
+		this.band = band;
+	}
+
+
+
+	/** Sets the filter pipeline for the full mode (null -> no filters). The
+		score of sequences that fail the MSV filter is NaN.*/
+	void setPipeline(FilterPipeline pipeline) {
+		this.pipeline = pipeline;
+	}
+
+
+
+	/** Scores the sequences seqs[from] to seqs[to - 1] and decides whether
+		they are rRNA. The result of seqs[i] is saved at index i - from in
+		score and isrRNA.
+		@param seqs Testsequences
+		@param from First index (inclusive)
+		@param to Last index (exclusive)
+		@param score Array for the viterbi scores
+		@param isrRNA Array for the decisions of the matchhit-method*/
+	void score(PackedSeq[] seqs, int from, int to, double[] score,
+			boolean[] isrRNA) {
+		if (scoreOnly && lanes > 1 && !forward) {
+			scoreLanes(seqs, from, to, score, isrRNA);
+			return;
+		}
+
+		Runnable task = () -> IntStream.range(from, to).parallel().forEach(i -> {
+			ViterbiWorker w = workers.get();
+			//the pipeline measures its stages itself
+			if (pipeline != null && !forward && !scoreOnly) {
+				isrRNA[i - from] =
+					pipeline.classify(w, seqs[i], score, i - from);
+				return;
+			}
+
+			long t = Stats.start();
+			if (forward)
+				score[i - from] = scoreOnly ? w.forward(seqs[i])
+					: w.posterior(seqs[i]);
+			else
+				score[i - from] = scoreOnly ? w.score(seqs[i])
+					: w.processViterbi(seqs[i]);
+			//posterior(..): forward & backward pass, the full viterbi
+			//algorithm counts its cells itself (band, checkpoints)
+			long cells = (long) seqs[i].length() * matnr;
+			if (!scoreOnly)
+				cells = forward ? 2 * cells : w.cells();
+			t = Stats.stop(Stats.Stage.VITERBI, t, 1, cells);
+
+			if (scoreOnly)
+				isrRNA[i - from] = false;
+			else {
+				isrRNA[i - from] = forward ? w.posteriorMatchhit(qthr, lthr)
+					: w.classify(classifier);
+				//segments calculated again for the traceback (checkpoints)
+				Stats.stop(Stats.Stage.BACKTRACK, t, 1,
+					forward ? 0 : w.cells() - cells);
+			}
+		});
+
+		await(pool, task, "Scoring");
+	}
+
+
+
+	/** Scores the sequences seqs[from] to seqs[to - 1] with the full
+		viterbi algorithm and saves the statistics of their paths that the
+		matchhit-method needs (see ThresholdSweep) at index i - from, so the
+		thresholds can be varied without a new viterbi run. The score-only,
+		forward & pipeline modes are not used.
+		@param seqs Testsequences
+		@param from First index (inclusive)
+		@param to Last index (exclusive)
+		@param score Array for the viterbi scores
+		@param hits Array for the number of matchhits
+		@param chains Array for the number of chains of matchhits*/
+	void summarize(PackedSeq[] seqs, int from, int to, double[] score,
+			int[] hits, int[] chains) {
+		Runnable task = () -> IntStream.range(from, to).parallel().forEach(i -> {
+			ViterbiWorker w = workers.get();
+			long t = Stats.start();
+			score[i - from] = w.processViterbi(seqs[i]);
+			long cells = w.cells();
+			t = Stats.stop(Stats.Stage.VITERBI, t, 1, cells);
+
+			PathStats s = w.pathStats();
+			hits[i - from] = s.count(StatePath.M);
+			chains[i - from] = s.runs(StatePath.M);
+			Stats.stop(Stats.Stage.BACKTRACK, t, 1, w.cells() - cells);
+		});
+
+		await(pool, task, "Scoring");
+	}
+
+
+
+	/** Score-only mode with several sequences per worker at once. The
+		sequences are sorted by their length, so the sequences of one group
+		have similar lengths (less work for the lanes that are done).*/
+	private void scoreLanes(PackedSeq[] seqs, int from, int to,
+			double[] score, boolean[] isrRNA) {
+		int[] index = IntStream.range(from, to).boxed()
+			.sorted(Comparator.comparingInt(i -> seqs[i].length()))
+			.mapToInt(Integer::intValue).toArray();
+		int groups = (index.length + lanes - 1) / lanes;
+
+		Runnable task = () -> IntStream.range(0, groups).parallel()
+			.forEach(g -> {
+				int start = g * lanes;
+				int n = Math.min(lanes, index.length - start);
+				long t = Stats.start(), cells = 0;
+				workers.get().scoreLanes(seqs, index, start, n, score, from);
+				if (Stats.isEnabled())
+					for (int l = 0; l < n; l++)
+						cells += (long) seqs[index[start + l]].length() * matnr;
+				Stats.stop(Stats.Stage.VITERBI, t, n, cells);
+			});
+
+		await(pool, task, "Scoring");
+		Arrays.fill(isrRNA, 0, to - from, false);
+	}
+
+
+
+	/** Runs a task on a pool and waits for it (for all parallel tasks of
+		the program). The errors of the task are wrapped into an
+		IllegalStateException, e.g. "Scoring failed" with the error as cause.
+		@param pool The pool
+		@param task The task
+		@param what Subject of the messages, e.g. "Scoring"
+		@return Result of the task*/
+	static <T> T await(ForkJoinPool pool, Callable<T> task, String what) {
+		try {
+			return pool.submit(task).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(what+" was interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(what+" failed", e.getCause());
+		}
+	}
+
+
+
+	/** Runs a task without result on a pool and waits for it, see above.*/
+	static void await(ForkJoinPool pool, Runnable task, String what) {
+		await(pool, Executors.callable(task), what);
+	}
+
+
+
+	/** Stops the threads of the pool.*/
+	void shutdown() {
+		pool.shutdown();
+	}
+
+}
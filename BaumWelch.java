@@ -0,0 +1,179 @@
+import java.util.stream.IntStream;
+
+/** Baum-Welch training (EM) of a PHMM with unaligned sequences: the
+	E-step sums the posterior probabilities of the emissions and transitions
+	over all sequences (Forward-Backward on the lattice of the scoring with
+	its free borders, so fragments count too, see ForwardBackward), the M-step
+	estimates the probabilities out of these expected counts with the
+	pseudocounts of the training (Laplace rule like in
+	RNASequenceTrain.estimateEmissions/estimateTransitions). The structure of
+	the model (matchpositions) stays the one of the start model.
+	The E-step runs in parallel over blocks of CHUNK sequences on the pool of
+	the caller (parallel stream), every thread has its own ForwardBackward.
+	The blocks are added up in their order, so the result does not depend on
+	the number of threads.*/
+final class BaumWelch {
+
+	//number of sequences that are counted together by one task
+	static final int CHUNK = 8;
+
+
+
+	private BaumWelch() {}
+
+
+
+	/** Expected counts of an E-step (sufficient statistics of the M-step).*/
+	static final class Counts {
+
+		//expected emissions at match node j & insert node j [j][base]
+		final double[][] em, ei;
+		//expected transitions [node][ST]
+		final double[][] tc;
+		//sum of the logarithmized probabilities of the counted sequences
+		double logLikelihood;
+		//number of counted sequences & of the ones with the probability 0
+		//(-inf in the logarithms, e.g. without pseudocounts; not counted)
+		int sequences, skipped;
+
+		Counts(int matnr) {
+			em = new double[matnr + 1][4];
+			ei = new double[matnr + 1][4];
+			tc = new double[matnr + 1][RNASequenceTrain.ST.values().length];
+		}
+
+		/** Adds the counts of another E-step (of other sequences).*/
+		void add(Counts o) {
+			for (int j = 0; j < em.length; j++) {
+				for (int x = 0; x < 4; x++) {
+					em[j][x] += o.em[j][x];
+					ei[j][x] += o.ei[j][x];
+				}
+				for (int x = 0; x < tc[j].length; x++)
+					tc[j][x] += o.tc[j][x];
+			}
+			logLikelihood += o.logLikelihood;
+			sequences += o.sequences;
+			skipped += o.skipped;
+		}
+	}
+
+
+
+	/** E-step: expected counts of the sequences with the given model. Runs as
+		parallel stream (on the ForkJoinPool of the caller).
+		@param model Actual model
+		@param seqs Unaligned sequences (only A, C, G & U)
+		@return The expected counts
+		@throws IllegalArgumentException If a sequence has another character*/
+	static Counts expect(PHMM model, PackedSeq[] seqs) {
+		ThreadLocal<ForwardBackward> scratch =
+			ThreadLocal.withInitial(() -> new ForwardBackward(model));
+		int chunks = (seqs.length + CHUNK - 1) / CHUNK;
+
+		Counts[] parts = IntStream.range(0, chunks).parallel()
+			.mapToObj(c -> {
+				ForwardBackward fb = scratch.get();
+				Counts part = new Counts(model.matnr);
+				byte[] dsq = new byte[0];
+				for (int i = c * CHUNK;
+						i < Math.min(seqs.length, (c + 1) * CHUNK); i++) {
+					int len = seqs[i].length();
+					if (dsq.length < len)
+						dsq = new byte[len];
+					seqs[i].codes(dsq);
+
+					double logp = fb.forward(dsq, len);
+					if (logp == Double.NEGATIVE_INFINITY) {
+						part.skipped++;
+						continue;
+					}
+					fb.backward(part.em, part.ei, part.tc);
+					part.logLikelihood += logp;
+					part.sequences++;
+				}
+				return part;
+			})
+			.toArray(Counts[]::new);
+
+		//in the order of the blocks
+		Counts ret = new Counts(model.matnr);
+		for (Counts part : parts)
+			ret.add(part);
+		return ret;
+	}
+
+
+
+	/** M-step: estimates a new model out of the expected counts.
+		@param model Model of the E-step (structure of the new one)
+		@param c Expected counts
+		@param pseudo Pseudocount of every emission & transition
+		@return The new model*/
+	static PHMM estimate(PHMM model, Counts c, double pseudo) {
+		int matnr = model.matnr;
+		double[][] eprobmat = new double[matnr][4];
+		double[][] eprobins = new double[matnr + 1][4];
+		for (int j = 0; j <= matnr; j++) {
+			if (j > 0)
+				laplace(c.em[j], eprobmat[j-1], 0, 4, pseudo);
+			laplace(c.ei[j], eprobins[j], 0, 4, pseudo);
+		}
+
+		//outgoing transitions of M, I & D of each node sum up to 1, the last
+		//node has only ..TM (end) and ..TI
+		int stsize = RNASequenceTrain.ST.values().length;
+		int mtm = RNASequenceTrain.ST.MTM.row;
+		int itm = RNASequenceTrain.ST.ITM.row;
+		int dtm = RNASequenceTrain.ST.DTM.row;
+		double[][] tprob = new double[matnr + 1][stsize];
+		for (int j = 0; j <= matnr; j++) {
+			int n = (j < matnr) ? 3 : 2;
+			laplace(c.tc[j], tprob[j], mtm, mtm + n, pseudo);
+			laplace(c.tc[j], tprob[j], itm, itm + n, pseudo);
+			laplace(c.tc[j], tprob[j], dtm, dtm + n, pseudo);
+		}
+
+		return new PHMM(model.isMatch, matnr, eprobmat, eprobins, tprob);
+	}
+
+
+
+	/** Logarithmized prior of the probabilities of a model: the pseudocounts
+		are a Dirichlet prior, so EM with them maximizes log-likelihood + this
+		value (and not the log-likelihood alone, it may become smaller).
+		@param model The model
+		@param pseudo Pseudocount of every emission & transition
+		@return Sum of pseudo * log(p) over all estimated probabilities*/
+	static double logPrior(PHMM model, double pseudo) {
+		int matnr = model.matnr;
+		double sum = 0;
+		for (int j = 0; j <= matnr; j++) {
+			for (int x = 0; x < 4; x++) {
+				if (j > 0)
+					sum += Math.log(model.eprobmat[j-1][x]);
+				sum += Math.log(model.eprobins[j][x]);
+			}
+			int n = (j < matnr) ? 3 : 2;
+			for (int from : new int[] {RNASequenceTrain.ST.MTM.row,
+					RNASequenceTrain.ST.ITM.row, RNASequenceTrain.ST.DTM.row})
+				for (int x = from; x < from + n; x++)
+					sum += Math.log(model.tprob[j][x]);
+		}
+		return pseudo * sum;
+	}
+
+
+
+	/** Relative frequencies with pseudocounts of counts[from..to) into
+		p[from..to).*/
+	private static void laplace(double[] counts, double[] p, int from, int to,
+			double pseudo) {
+		double sum = 0;
+		for (int x = from; x < to; x++)
+			sum += counts[x];
+		for (int x = from; x < to; x++)
+			p[x] = (counts[x] + pseudo) / (sum + (to - from) * pseudo);
+	}
+
+}
@@ -0,0 +1,488 @@
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.function.IntToDoubleFunction;
+
+/** Microbenchmarks of the Viterbi kernels, the training and the casino with
+	the methodology of JMH, but without a dependency (the project has no build
+	tool): every benchmark runs warmup iterations that are thrown away and
+	then measured iterations of at least the given time, the results go into
+	a sink (like the Blackhole of JMH), so the JIT can not remove the work.
+	Reported are the DP cells per second (mean & standard deviation over the
+	iterations), the operations per second, the latency of one operation
+	(percentiles out of a histogram that allocates nothing while measuring),
+	the allocated bytes per operation & the allocation rate (allocated bytes
+	of all threads, like the GC profiler of JMH) and the garbage collections.
+	The parameters are the model size (matnr: the LSU model of LSU_train.fasta
+	or a model of a synthetic MSA with about that many matchpositions), the
+	sequence length (the sequences of LSU_short_test.fasta & the rolls of
+	Casino.txt or random ones of that length) and the batch size of
+	BatchScorer. One operation is one sequence (viterbi, score, forward,
+	posterior), one batch (batch), one training (train) or one decoding of the
+	rolls (casino).
+	Usage: java Benchmark [options] (see main)*/
+public class Benchmark {
+
+	//all benchmarks in the order of the output
+	private static final List<String> BENCHMARKS = Arrays.asList("viterbi",
+		"score", "forward", "posterior", "batch", "train", "casino");
+	//parameter value for the bundled data
+	private static final String LSU = "lsu";
+	//bundled data
+	private static final String TRAIN = "LSU_train.fasta",
+		TEST = "LSU_short_test.fasta", CASINO = "Casino.txt";
+	//rows of the synthetic MSAs, every INSERT-th column is an insert column
+	private static final int MSAROWS = 100, INSERT = 10;
+	//same synthetic inputs in every run
+	private static final long SEED = 42;
+	//thresholds of the matchhit-method (like RNASequenceTrain)
+	private static final double QTHR = 0.8, LTHR = 3;
+
+	//results of all operations (see class comment)
+	static double sink;
+
+	//output of the benchmarked code (the training prints) is thrown away
+	private static final PrintStream QUIET =
+		new PrintStream(OutputStream.nullOutputStream());
+	//allocated bytes per thread
+	private static final com.sun.management.ThreadMXBean THREADS =
+		(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	//bytes that the measurement of the allocated bytes allocates itself
+	private static long allocOverhead;
+
+
+
+	private Benchmark() {}
+
+
+
+	/** One benchmark with its parameters: ops operations per pass, operation
+		k computes cells[k] cells.*/
+	private static final class Case {
+		final String name, params;
+		final int ops;
+		final long[] cells;
+		final IntToDoubleFunction op;
+
+		Case(String name, String params, long[] cells, IntToDoubleFunction op) {
+			this.name = name;
+			this.params = params;
+			this.ops = cells.length;
+			this.cells = cells;
+			this.op = op;
+		}
+	}
+
+
+
+	/** Histogram of latencies in ns with 16 buckets per power of 2 (at most
+		6% error), so recording allocates nothing.*/
+	private static final class Histogram {
+		private static final int SUB = 4;
+		private final long[] counts = new long[64 << SUB];
+		private long total;
+
+		void add(long ns) {
+			counts[bucket(Math.max(1, ns))]++;
+			total++;
+		}
+
+		private static int bucket(long v) {
+			int e = 63 - Long.numberOfLeadingZeros(v);
+			if (e < SUB)
+				return (int) v;
+			int sub = (int) (v >>> (e - SUB)) & ((1 << SUB) - 1);
+			return ((e - SUB + 1) << SUB) + sub;
+		}
+
+		/** Middle of the bucket of the p-quantile (0 < p <= 1).*/
+		double quantile(double p) {
+			long rank = (long) Math.ceil(p * total), n = 0;
+			for (int b = 0; b < counts.length; b++) {
+				n += counts[b];
+				if (n >= rank && counts[b] > 0) {
+					if (b < 1 << SUB)
+						return b;
+					int e = (b >> SUB) + SUB - 1;
+					long sub = b & ((1 << SUB) - 1);
+					long low = (1L << e) + (sub << (e - SUB));
+					return low + (1L << (e - SUB)) / 2.0;
+				}
+			}
+			return Double.NaN;
+		}
+	}
+
+
+
+	/** Runs the benchmarks.
+		Options: --bench list (default: all, see BENCHMARKS),
+		--matnr list (lsu or sizes, default: lsu), --length list (lsu or
+		lengths, default: lsu), --batch list (default: 1024), --sequences n
+		(number of random sequences, default: 100), --threads n (of batch,
+		default: all cores), --kernel scalar|striped (of score), --warmup n
+		(default: 3), --iterations n (default: 5), --time ms (minimal time of
+		an iteration, default: 1000), --data dir (bundled data, default: .).
+		Lists are separated by commas.*/
+	public static void main(String[] args) throws IOException {
+		List<String> benches = BENCHMARKS;
+		List<String> matnrs = Arrays.asList(LSU), lengths = matnrs;
+		List<String> batches = Arrays.asList("1024");
+		int sequences = 100;
+		int threads = Runtime.getRuntime().availableProcessors();
+		String kernel = "scalar";
+		int warmup = 3, iterations = 5;
+		long time = 1000;
+		String data = ".";
+		for (int i = 0; i < args.length; i++) {
+			if (i + 1 == args.length)
+				throw new IllegalArgumentException("Unknown option or missing "
+					+"value: "+args[i]);
+			if (args[i].equals("--bench"))
+				benches = Arrays.asList(args[++i].split(","));
+			else if (args[i].equals("--matnr"))
+				matnrs = Arrays.asList(args[++i].split(","));
+			else if (args[i].equals("--length"))
+				lengths = Arrays.asList(args[++i].split(","));
+			else if (args[i].equals("--batch"))
+				batches = Arrays.asList(args[++i].split(","));
+			else if (args[i].equals("--sequences"))
+				sequences = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--threads"))
+				threads = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--kernel"))
+				kernel = args[++i];
+			else if (args[i].equals("--warmup"))
+				warmup = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--iterations"))
+				iterations = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--time"))
+				time = Long.parseLong(args[++i]);
+			else if (args[i].equals("--data"))
+				data = args[++i];
+			else
+				throw new IllegalArgumentException("Unknown option "+args[i]);
+		}
+		for (String b : benches)
+			if (!BENCHMARKS.contains(b))
+				throw new IllegalArgumentException("Unknown benchmark "+b
+					+" (known: "+String.join(",", BENCHMARKS)+")");
+		if (iterations < 1 || warmup < 0 || sequences < 1)
+			throw new IllegalArgumentException("At least 1 iteration and 1 "
+				+"sequence are needed");
+
+		ViterbiWorker.Kernel k;
+		try {
+			k = ViterbiWorker.Kernel.valueOf(kernel.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Unknown kernel "+kernel);
+		}
+		if (k == ViterbiWorker.Kernel.INTERSEQ)
+			throw new IllegalArgumentException("The score benchmark scores one "
+				+"sequence at a time, the interseq kernel is not possible");
+		if (k != ViterbiWorker.Kernel.SCALAR
+				&& !ViterbiWorker.isVectorAvailable()) {
+			System.err.println("The Vector API is not available (java "
+				+"--add-modules jdk.incubator.vector), using the scalar kernel");
+			k = ViterbiWorker.Kernel.SCALAR;
+		}
+		allocOverhead = Long.MAX_VALUE;
+		for (int i = 0; i < 100; i++)
+			allocOverhead = Math.min(allocOverhead, allocatedSince(allocated()));
+
+		//like RNASequenceTrain: full matrices may use half of the heap
+		long maxCells = Runtime.getRuntime().maxMemory()
+			/ (2 * threads * ViterbiWorker.BYTES_PER_CELL);
+
+		System.out.println("# JVM "+System.getProperty("java.vm.version")
+			+", "+Runtime.getRuntime().availableProcessors()+" cores, warmup "
+			+warmup+", iterations "+iterations+" of at least "+time+" ms");
+		System.out.format("%-10s %-44s %10s %8s %10s %10s %10s %10s %9s %4s "
+			+"%6s%n", "Benchmark", "Params", "Mcells/s", "sd", "ops/s", "p50 us",
+			"p99 us", "B/op", "MB/s", "GCs", "GC ms");
+
+		Random rnd = new Random(SEED);
+		for (String m : matnrs) {
+			PackedSeq[] msa = m.equals(LSU) ? read(data, TRAIN)
+				: syntheticMSA(Integer.parseInt(m), rnd);
+			PHMM model = quiet(() -> RNASequenceTrain.train(msa));
+			String mp = "matnr="+model.matnr;
+
+			if (benches.contains("train")) {
+				long cols = msa[0].length();
+				run(new Case("train", mp+" msa="+msa.length+"x"+cols,
+					new long[] {msa.length * cols},
+					i -> RNASequenceTrain.train(msa).matnr), warmup, iterations,
+					time);
+			}
+
+			for (String l : lengths) {
+				PackedSeq[] seqs = l.equals(LSU) ? read(data, TEST)
+					: random(Integer.parseInt(l), sequences, rnd);
+				String p = mp+" len="+(l.equals(LSU) ? "lsu" : l)+"("
+					+seqs.length+")";
+				long[] cells = new long[seqs.length];
+				for (int i = 0; i < seqs.length; i++)
+					cells[i] = (long) seqs[i].length() * model.matnr;
+
+				if (benches.contains("viterbi")) {
+					ViterbiWorker w = new ViterbiWorker(model, maxCells);
+					run(new Case("viterbi", p, cells, i -> {
+						double s = w.processViterbi(seqs[i]);
+						return w.matchhitThreshold(QTHR, LTHR) ? s : -s;
+					}), warmup, iterations, time);
+				}
+				if (benches.contains("score")) {
+					ViterbiWorker w = new ViterbiWorker(model, maxCells, k);
+					run(new Case("score", p+" "+k.name().toLowerCase(), cells,
+						i -> w.score(seqs[i])), warmup, iterations, time);
+				}
+				if (benches.contains("forward")) {
+					ViterbiWorker w = new ViterbiWorker(model, maxCells);
+					run(new Case("forward", p, cells, i -> w.forward(seqs[i])),
+						warmup, iterations, time);
+				}
+				if (benches.contains("posterior")) {
+					ViterbiWorker w = new ViterbiWorker(model, maxCells);
+					run(new Case("posterior", p, cells, i -> {
+						double s = w.posterior(seqs[i]);
+						return w.posteriorMatchhit(QTHR, LTHR) ? s : -s;
+					}), warmup, iterations, time);
+				}
+				if (benches.contains("batch"))
+					for (String b : batches)
+						batch(model, seqs, cells, Integer.parseInt(b), threads,
+							maxCells, p, warmup, iterations, time);
+			}
+		}
+
+		if (benches.contains("casino"))
+			for (String l : lengths) {
+				String rolls = l.equals(LSU) ? rolls(data)
+					: randomRolls(Integer.parseInt(l), rnd);
+				run(new Case("casino", "states=2 len="+(l.equals(LSU)
+					? "casino" : l)+"("+rolls.length()+")",
+					new long[] {2L * rolls.length()},
+					i -> Casino.decode(rolls).length()), warmup, iterations,
+					time);
+			}
+	}
+
+
+
+	/** Benchmark of BatchScorer (full mode): the sequences are scored in
+		batches of the given size, one operation is one batch.*/
+	private static void batch(PHMM model, PackedSeq[] seqs, long[] seqCells,
+			int size, int threads, long maxCells, String params, int warmup,
+			int iterations, long time) {
+		int n = (seqs.length + size - 1) / size;
+		long[] cells = new long[n];
+		for (int i = 0; i < seqs.length; i++)
+			cells[i / size] += seqCells[i];
+		double[] score = new double[size];
+		boolean[] isrRNA = new boolean[size];
+
+		BatchScorer scorer = new BatchScorer(model, threads, maxCells,
+			ViterbiWorker.Kernel.SCALAR, QTHR, LTHR);
+		try {
+			run(new Case("batch", params+" batch="+size+" threads="+threads,
+				cells, i -> {
+					scorer.score(seqs, i * size,
+						Math.min(seqs.length, (i + 1) * size), score, isrRNA);
+					return score[0];
+				}), warmup, iterations, time);
+		} finally {
+			scorer.shutdown();
+		}
+	}
+
+
+
+	/** Runs the warmup & the measured iterations of a benchmark and prints
+		the results.*/
+	private static void run(Case c, int warmup, int iterations, long time) {
+		Histogram latency = new Histogram();
+		double[] rate = new double[iterations];
+		long ops = 0, nanos = 0, bytes = 0, gcs = 0, gcTime = 0;
+
+		PrintStream out = System.out;
+		System.setOut(QUIET);
+		try {
+			for (int it = -warmup; it < iterations; it++) {
+				boolean measured = it >= 0;
+				Map<Long, Long> alloc = allocated();
+				long[] gc = gc();
+				long n = 0, cells = 0;
+				long start = System.nanoTime(), end;
+				do {
+					for (int k = 0; k < c.ops; k++) {
+						long t = System.nanoTime();
+						sink += c.op.applyAsDouble(k);
+						long dt = System.nanoTime() - t;
+						if (measured)
+							latency.add(dt);
+						cells += c.cells[k];
+					}
+					n += c.ops;
+				} while ((end = System.nanoTime()) - start < time * 1000000);
+
+				if (measured) {
+					rate[it] = cells * 1e3 / (end - start);	//Mcells/s
+					ops += n;
+					nanos += end - start;
+					bytes += Math.max(0, allocatedSince(alloc) - allocOverhead);
+					long[] gc2 = gc();
+					gcs += gc2[0] - gc[0];
+					gcTime += gc2[1] - gc[1];
+				}
+			}
+		} finally {
+			System.setOut(out);
+		}
+
+		double mean = 0, var = 0;
+		for (double r : rate)
+			mean += r / iterations;
+		for (double r : rate)
+			var += (r - mean) * (r - mean);
+		double sd = (iterations > 1) ? Math.sqrt(var / (iterations - 1)) : 0;
+		System.out.format("%-10s %-44s %10.2f %8.2f %10.1f %10.1f %10.1f "
+			+"%10.0f %9.1f %4d %6d%n", c.name, c.params, mean, sd,
+			ops * 1e9 / nanos, latency.quantile(0.5) / 1e3,
+			latency.quantile(0.99) / 1e3, (double) bytes / ops,
+			bytes * 1e3 / nanos, gcs, gcTime);
+	}
+
+
+
+	/** Allocated bytes of all living threads until now.*/
+	private static Map<Long, Long> allocated() {
+		long[] ids = THREADS.getAllThreadIds();
+		long[] bytes = THREADS.getThreadAllocatedBytes(ids);
+		Map<Long, Long> ret = new HashMap<Long, Long>();
+		for (int i = 0; i < ids.length; i++)
+			if (bytes[i] >= 0)
+				ret.put(ids[i], bytes[i]);
+		return ret;
+	}
+
+
+
+	/** Bytes that all threads allocated since allocated() returned before
+		(threads that ended in between are missing).*/
+	private static long allocatedSince(Map<Long, Long> before) {
+		long sum = 0;
+		for (Map.Entry<Long, Long> e : allocated().entrySet())
+			sum += e.getValue() - before.getOrDefault(e.getKey(), 0L);
+		return sum;
+	}
+
+
+
+	/** Number & time (ms) of all garbage collections until now.*/
+	private static long[] gc() {
+		long[] ret = new long[2];
+		for (GarbageCollectorMXBean b :
+				ManagementFactory.getGarbageCollectorMXBeans()) {
+			ret[0] += Math.max(0, b.getCollectionCount());
+			ret[1] += Math.max(0, b.getCollectionTime());
+		}
+		return ret;
+	}
+
+
+
+	/** Runs a task without its output on System.out.*/
+	private static <T> T quiet(java.util.function.Supplier<T> task) {
+		PrintStream out = System.out;
+		System.setOut(QUIET);
+		try {
+			return task.get();
+		} finally {
+			System.setOut(out);
+		}
+	}
+
+
+
+	/** All sequences of a bundled FASTA file.*/
+	private static PackedSeq[] read(String dir, String name)
+			throws IOException {
+		ArrayList<PackedSeq> seqs = new ArrayList<PackedSeq>();
+		try (FastaReader r = new FastaReader(new File(dir, name).getPath())) {
+			while (r.next())
+				seqs.add(r.packed());
+		}
+		return seqs.toArray(new PackedSeq[seqs.size()]);
+	}
+
+
+
+	/** The rolls of the bundled Casino.txt.*/
+	private static String rolls(String dir) throws IOException {
+		StringBuilder b = new StringBuilder();
+		try (BufferedReader r = new BufferedReader(
+				new FileReader(new File(dir, CASINO)))) {
+			String line;
+			while ((line = r.readLine()) != null)
+				b.append(line);
+		}
+		return b.toString();
+	}
+
+
+
+	/** Synthetic MSA of MSAROWS rows with matnr columns of 10% gaps (match
+		columns) and after every INSERT-th one a column with 80% gaps (insert
+		column).*/
+	private static PackedSeq[] syntheticMSA(int matnr, Random rnd) {
+		StringBuilder[] rows = new StringBuilder[MSAROWS];
+		for (int i = 0; i < MSAROWS; i++)
+			rows[i] = new StringBuilder();
+		for (int j = 1; j <= matnr; j++) {
+			for (StringBuilder row : rows)
+				row.append(rnd.nextDouble() < 0.1 ? '-' : base(rnd));
+			if (j % INSERT == 0)
+				for (StringBuilder row : rows)
+					row.append(rnd.nextDouble() < 0.8 ? '-' : base(rnd));
+		}
+
+		PackedSeq[] ret = new PackedSeq[MSAROWS];
+		for (int i = 0; i < MSAROWS; i++)
+			ret[i] = PackedSeq.of(rows[i]);
+		return ret;
+	}
+
+
+
+	/** n random sequences (uniform bases) of the given length.*/
+	private static PackedSeq[] random(int length, int n, Random rnd) {
+		PackedSeq[] ret = new PackedSeq[n];
+		StringBuilder b = new StringBuilder(length);
+		for (int i = 0; i < n; i++) {
+			b.setLength(0);
+			for (int j = 0; j < length; j++)
+				b.append(base(rnd));
+			ret[i] = PackedSeq.of(b);
+		}
+		return ret;
+	}
+
+
+
+	/** Random rolls of a fair die.*/
+	private static String randomRolls(int length, Random rnd) {
+		StringBuilder b = new StringBuilder(length);
+		for (int j = 0; j < length; j++)
+			b.append((char) ('1' + rnd.nextInt(6)));
+		return b.toString();
+	}
+
+
+
+	/** Random base (uniform).*/
+	private static char base(Random rnd) {
+		return "ACGU".charAt(rnd.nextInt(4));
+	}
+
+}
@@ -0,0 +1,282 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.ToDoubleBiFunction;
+import java.util.stream.IntStream;
+
+/** Calibration of the viterbi scores of a model: E-values instead of a fixed
+	threshold. The distribution of the scores of sequences that are no rRNA
+	depends on their length L: short ones have to be emitted completely by
+	the model, so the score falls with L, long ones (about L > matnr / 3)
+	skip their prefix over column 0 for free, so the score hardly changes
+	(the log-odds against the background would grow with L * log 4, so the
+	viterbi score itself is calibrated). A null set of random sequences
+	(uniform, like the background) is scored for a grid of lengths and for
+	every length the parameters of a Gumbel distribution (mu, lambda, maximum
+	likelihood) and of an exponential tail (the highest TAIL of the scores:
+	threshold tau & its own lambda) are fitted. For a sequence of length L
+	the parameters are interpolated linearly between the neighbouring
+	lengths of the grid (the first / last ones outside of it), the P-value is
+		P(S >= s) = 1 - exp(-exp(-lambda (s - mu)))				s <= tau
+		P(S >= s) = P(S >= tau) * exp(-lambdaTail (s - tau))	s > tau
+	and the E-value is P times the number of sequences of the database. The
+	parameters are saved with the model (see ModelFile), so the E-values cost
+	O(1) per sequence. Objects are immutable.*/
+final class Calibration {
+
+	//fraction of the highest scores for the exponential tail
+	static final double TAIL = 0.1;
+	//number of doubles per length in the model file
+	static final int VALUES = 5;
+
+	//lengths of the grid (increasing) and the parameters per length
+	private final int[] lengths;
+	private final double[] mu, lambda, tau, lambdaTail;
+
+
+
+	/** Creates a calibration out of its parameters (see ModelFile). The
+		arrays are taken over and must not be used by the caller afterwards.*/
+	Calibration(int[] lengths, double[] mu, double[] lambda, double[] tau,
+			double[] lambdaTail) {
+		int n = lengths.length;
+		if (n == 0 || mu.length != n || lambda.length != n || tau.length != n
+				|| lambdaTail.length != n)
+			throw new IllegalArgumentException("A calibration needs the same "
+				+"number (at least 1) of lengths and parameters");
+		for (int b = 0; b < n; b++)
+			if (lengths[b] < 1 || (b > 0 && lengths[b] <= lengths[b-1])
+					|| !(lambda[b] > 0) || !(lambdaTail[b] > 0))
+				throw new IllegalArgumentException("The lengths of a "
+					+"calibration must increase and the lambdas be positive");
+		this.lengths = lengths;
+		this.mu = mu;
+		this.lambda = lambda;
+		this.tau = tau;
+		this.lambdaTail = lambdaTail;
+	}
+
+
+
+	/** Default grid of the lengths: 128 * sqrt(2)^k up to twice the number
+		of match nodes (dense at the short lengths, where the scores change
+		fastest).*/
+	static int[] defaultLengths(int matnr) {
+		ArrayList<Integer> ret = new ArrayList<Integer>();
+		for (double l = 128; l <= Math.max(128, 2.0 * matnr);
+				l *= Math.sqrt(2))
+			ret.add((int) Math.round(l));
+		return ret.stream().mapToInt(Integer::intValue).toArray();
+	}
+
+
+
+	/** Scores a null set of random sequences in parallel and fits the
+		parameters for every length.
+		@param model Trained PHMM
+		@param lengths Lengths of the grid (increasing)
+		@param n Number of null sequences per length (at least 10)
+		@param seed Seed of the random sequences (same seed -> same fit)
+		@param kernel Kernel of the score-only mode (see ViterbiWorker)
+		@param threads Number of threads
+		@return The calibration*/
+	static Calibration fit(PHMM model, int[] lengths, int n, long seed,
+			ViterbiWorker.Kernel kernel, int threads) {
+		return fit(model, lengths, n, seed, kernel, threads,
+			ViterbiWorker::score);
+	}
+
+
+
+	/** Like fit(..) for the viterbi scores, but for another score of the
+		null sequences (e.g. ViterbiWorker::msv for the MSV filter).
+		@param score Score of a null sequence with the worker of the thread*/
+	static Calibration fit(PHMM model, int[] lengths, int n, long seed,
+			ViterbiWorker.Kernel kernel, int threads,
+			ToDoubleBiFunction<ViterbiWorker, PackedSeq> score) {
+		if (n < 10)
+			throw new IllegalArgumentException("The calibration needs at "
+				+"least 10 null sequences per length and not "+n);
+		int bins = lengths.length;
+		double[][] scores = new double[bins][n];
+		ThreadLocal<ViterbiWorker> workers = ThreadLocal.withInitial(
+			() -> new ViterbiWorker(model, 0, kernel));
+
+		//one task per null sequence, every one with its own generator, so
+		//the set does not depend on the threads
+		Runnable task = () -> IntStream.range(0, bins * n).parallel()
+			.forEach(p -> {
+				int b = p / n, len = lengths[b];
+				SplittableRandom r = new SplittableRandom(seed + p);
+				byte[] seq = new byte[len];
+				for (int i = 0; i < len; i++)
+					seq[i] = (byte) "ACGU".charAt(r.nextInt(4));
+				long t = Stats.start();
+				scores[b][p % n] = score.applyAsDouble(workers.get(),
+					PackedSeq.of(seq, len));
+				Stats.stop(Stats.Stage.VITERBI, t, 1,
+					(long) len * model.matnr);
+			});
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			BatchScorer.await(pool, task, "Calibration");
+		} finally {
+			pool.shutdown();
+		}
+
+		double[] mu = new double[bins], lambda = new double[bins];
+		double[] tau = new double[bins], lambdaTail = new double[bins];
+		for (int b = 0; b < bins; b++) {
+			double[] x = scores[b];
+			double[] g = fitGumbel(x);
+			mu[b] = g[0];
+			lambda[b] = g[1];
+
+			//exponential tail: maximum likelihood of the excesses over tau
+			Arrays.sort(x);
+			int k = Math.max(2, (int) Math.round(TAIL * n));
+			tau[b] = x[n - k - 1];
+			double excess = 0;
+			for (int i = n - k; i < n; i++)
+				excess += x[i] - tau[b];
+			//all equal (e.g. a constant score) -> the one of the Gumbel
+			lambdaTail[b] = (excess > 0) ? k / excess : lambda[b];
+		}
+		return new Calibration(lengths.clone(), mu, lambda, tau, lambdaTail);
+	}
+
+
+
+	/** Maximum likelihood fit of a Gumbel distribution (complete data): lambda
+		is the root of
+			1/lambda - mean(x) + sum(x e^(-lambda x)) / sum(e^(-lambda x))
+		(Newton-Raphson with bisection as fallback), then
+			mu = -log(mean(e^(-lambda x))) / lambda.
+		The scores are centered first, so the exponentials do not overflow.
+		@param x Scores
+		@return {mu, lambda}*/
+	static double[] fitGumbel(double[] x) {
+		int n = x.length;
+		double mean = 0, var = 0;
+		for (double v : x)
+			mean += v;
+		mean /= n;
+		for (double v : x)
+			var += (v - mean) * (v - mean);
+		var /= n;
+		if (!(var > 0))
+			//no spread -> very steep distribution at the mean
+			return new double[] {mean, 1e6};
+
+		double[] y = new double[n];
+		for (int i = 0; i < n; i++)
+			y[i] = x[i] - mean;
+
+		//start with the moments: sd = pi / (lambda * sqrt(6))
+		double lam = Math.PI / Math.sqrt(6 * var);
+		double lo = 0, hi = Double.POSITIVE_INFINITY;
+		for (int it = 0; it < 100; it++) {
+			double s0 = 0, s1 = 0, s2 = 0;
+			for (double v : y) {
+				double e = Math.exp(-lam * v);
+				s0 += e;
+				s1 += v * e;
+				s2 += v * v * e;
+			}
+			//mean(y) = 0
+			double f = 1 / lam + s1 / s0;
+			double df = -1 / (lam * lam) - (s2 * s0 - s1 * s1) / (s0 * s0);
+			//f decreases with lambda: keep the bracket of the root
+			if (f > 0)
+				lo = lam;
+			else
+				hi = lam;
+			if (Math.abs(f) < 1e-10 * (1 / lam))
+				break;
+			double next = lam - f / df;
+			if (!(next > lo && next < hi))
+				next = Double.isInfinite(hi) ? 2 * lam : (lo + hi) / 2;
+			lam = next;
+		}
+
+		double s0 = 0;
+		for (double v : y)
+			s0 += Math.exp(-lam * v);
+		return new double[] {mean - Math.log(s0 / n) / lam, lam};
+	}
+
+
+
+	/** P-value of a viterbi score of a sequence of the given length.
+		@param score Viterbi score (log probability, see ViterbiWorker; or the
+			score of the calibration, see fit(..))
+		@param length Length of the sequence
+		@return P(S >= score) for a null sequence (NaN for NaN)*/
+	double pValue(double score, int length) {
+		//length of the grid left of the length & weight of the right one
+		int b = 0;
+		while (b + 1 < lengths.length && lengths[b + 1] <= length)
+			b++;
+		double w = 0;
+		if (b + 1 < lengths.length && length > lengths[b])
+			w = (double) (length - lengths[b]) / (lengths[b + 1] - lengths[b]);
+		int c = Math.min(b + 1, lengths.length - 1);
+
+		double m = (1 - w) * mu[b] + w * mu[c];
+		double l = (1 - w) * lambda[b] + w * lambda[c];
+		double t = (1 - w) * tau[b] + w * tau[c];
+		double lt = (1 - w) * lambdaTail[b] + w * lambdaTail[c];
+
+		if (score <= t)
+			return gumbel(score, m, l);
+		return gumbel(t, m, l) * Math.exp(-lt * (score - t));
+	}
+
+
+
+	/** E-value of a viterbi score: expected number of null sequences of the
+		same length with at least this score among z sequences.
+		@param score Viterbi score
+		@param length Length of the sequence
+		@param z Number of sequences of the database*/
+	double eValue(double score, int length, double z) {
+		return z * pValue(score, length);
+	}
+
+
+
+	/** Survival function of the Gumbel distribution.*/
+	private static double gumbel(double x, double mu, double lambda) {
+		//-expm1(-e^y) = 1 - exp(-e^y), exact also for tiny P-values
+		return -Math.expm1(-Math.exp(-lambda * (x - mu)));
+	}
+
+
+
+	/** Number of lengths of the grid.*/
+	int size() {
+		return lengths.length;
+	}
+
+
+
+	/** Parameters of the k-th length: {length, mu, lambda, tau, lambdaTail}
+		(see ModelFile).*/
+	double[] values(int k) {
+		return new double[] {lengths[k], mu[k], lambda[k], tau[k],
+			lambdaTail[k]};
+	}
+
+
+
+	/** Parameters as text (one line per length, for the output).*/
+	public String toString() {
+		StringBuilder b = new StringBuilder();
+		b.append("#length\tmu\tlambda\ttau\tlambda tail\n");
+		for (int k = 0; k < lengths.length; k++)
+			b.append(lengths[k]).append('\t').append(mu[k]).append('\t')
+				.append(lambda[k]).append('\t').append(tau[k]).append('\t')
+				.append(lambdaTail[k]).append('\n');
+		return b.toString();
+	}
+
+}
@@ -88,6 +88,29 @@ public class Casino {
 	}
 
 
+	/** Computes all the viterbi variables and the viterbi path of the
+		observations (also for Benchmark).
+		@param observations The rolls ('1' to '6')
+		@return The viterbi path (one hidden state per roll)*/
+	static String decode(String observations) {
+		obs = observations;
+		
+		v = new double[hidden_states.length + 1][obs.length() + 1];
+		bt = new char[hidden_states.length + 1][obs.length() + 1];
+		
+		//init viterbi matrix
+		v[0][0] = 1; //and v[k][0] = 0 (default) for k > 0
+		
+		//compute all the viterbi variables iteratively
+		for (int i = 1; i < v[0].length; i++)
+			for (int j = 0; j < hidden_states.length; j++)
+				viterbi(j ,i);
+		
+		//traceback
+		return traceback();
+	}
+
+
 	/** Main method.*/
 	public static void main(String[] args) throws IOException{
 		
@@ -105,24 +128,9 @@ public class Casino {
 		while ((line = r.readLine()) != null)
 			b.append(line);
 		r.close();
-		obs = b.toString();	
 		
-		v = new double[hidden_states.length + 1][obs.length() + 1];
-		bt = new char[hidden_states.length + 1][obs.length() + 1];
-		
-		//init viterbi matrix
-		v[0][0] = 1; //and v[k][0] = 0 (default) for k > 0
-		
-		//compute all the viterbi variables iteratively
-		for (int i = 1; i < v[0].length; i++)
-			for (int j = 0; j < hidden_states.length; j++)
-				viterbi(j ,i);
-
-		
-		
-		
-		//traceback
-		String pi = traceback();
+		//viterbi path
+		String pi = decode(b.toString());
 		int l = 60; int start = 0;
 		//print the result in lines of length 60
 		while (obs.length() - (start + l) >= 0) {
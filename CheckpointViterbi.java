@@ -0,0 +1,180 @@
+import java.util.*;
+
+/** Viterbi-Algorithm with bounded memory for long testsequences. Instead of
+	the full (L+1)x(matnr+1) matrices only every k-th row (k = ceil(sqrt(L)))
+	is saved as checkpoint during the forward pass. For the backtracking the
+	rows between two checkpoints are calculated again with the same kernel
+	(one segment at a time), so the path is exactly the one of the full
+	matrices. Memory is O(sqrt(L) * matnr) at about twice the computing time.
+	Like the ViterbiWorker an object must not be shared between threads.*/
+final class CheckpointViterbi {
+
+	//the trained model
+	private final PHMM model;
+
+	//checkpoints: rows 0, k, 2k, ... of vM, vI & vD [checkpoint][column]
+	private double[][] cpM, cpI, cpD;
+	//two rows each for the calculation of the next row
+	private double[] aM, aI, aD, bM, bI, bD;
+	//traceback of the actual segment [row - start - 1][column] (see
+	//ViterbiKernel)
+	private byte[][] sg;
+
+	//the encoded testsequence (not copied) and its length
+	private byte[] dsq;
+	private int len;
+	//distance between the checkpoints
+	private int k;
+	//values at the last column of the last row (for the terminating state)
+	private double lastM, lastI, lastD;
+	//number of calculated cells of the last sequence (forward pass & the
+	//segments of the backtracking)
+	private long cells;
+
+
+
+	/** Creates the scratch space for the given model.
+		@param model Trained PHMM*/
+	CheckpointViterbi(PHMM model) {
+		this.model = model;
+		int cols = model.matnr + 1;
+		aM = new double[cols]; aI = new double[cols]; aD = new double[cols];
+		bM = new double[cols]; bI = new double[cols]; bD = new double[cols];
+		cpM = cpI = cpD = new double[0][];
+		sg = new byte[0][];
+	}
+
+
+
+	/** Forward pass of the viterbi algorithm, saves the checkpoints.
+		@param dsq Encoded testsequence (see PackedSeq.codes), must not be changed
+			until the backtracking is done
+		@param len Length of the testsequence
+		@return Score of the viterbi path*/
+	double processViterbi(byte[] dsq, int len) {
+		this.dsq = dsq;
+		this.len = len;
+		int matnr = model.matnr;
+		k = Math.max(1, (int) Math.ceil(Math.sqrt(len)));
+		cells = (long) len * matnr;
+
+		//checkpoint c is row c * k (last one may be incomplete)
+		int cps = len / k + 1;
+		if (cpM.length < cps) {
+			cpM = grow(cpM, cps, matnr + 1);
+			cpI = grow(cpI, cps, matnr + 1);
+			cpD = grow(cpD, cps, matnr + 1);
+		}
+
+		double[] pM = aM, pI = aI, pD = aD, cM = bM, cI = bI, cD = bD, t;
+		ViterbiKernel.firstRow(matnr, pM, pI, pD);
+		save(0, pM, pI, pD);
+
+		for (int i = 1; i <= len; i++) {
+			ViterbiKernel.scoreRow(model, dsq[i-1], pM, pI, pD, cM, cI, cD);
+			if (i % k == 0)
+				save(i / k, cM, cI, cD);
+
+			//swap rows
+			t = pM; pM = cM; cM = t;
+			t = pI; pI = cI; cI = t;
+			t = pD; pD = cD; cD = t;
+		}
+
+		lastM = pM[matnr];
+		lastI = pI[matnr];
+		lastD = pD[matnr];
+
+		//termination
+		return lastM;
+	}
+
+
+
+	/** Backtrack the viterbipath of the last forward pass. The segments
+		between the checkpoints are calculated again from back to front.
+		@param path Buffer for the path (same as the one of
+			ViterbiWorker.backtrack)*/
+	void backtrack(StatePath path) {
+		int ter = ViterbiKernel.terminalState(lastM, lastI, lastD);
+		int i = len, j = model.matnr;
+		int start = -1, end = -1;	//rows (start, end] of the actual segment
+		path.clear(len, j);
+
+		//path is collected from the end
+		while (i > 0 && j > 0) {
+			//traceback of row i needed -> calculate its segment
+			if (i <= start || i > end) {
+				start = ((i - 1) / k) * k;
+				end = Math.min(start + k, len);
+				segment(start, end);
+			}
+
+			path.prepend(ter);
+			int prev = ViterbiKernel.previous(sg[i - start - 1][j], ter);
+			if (ter != StatePath.D)
+				i--;
+			if (ter != StatePath.I)
+				j--;
+			ter = prev;
+		}
+
+		//no more characters -> deletions, no more columns -> insertions
+		path.prepend(StatePath.D, j);
+		path.prepend(StatePath.I, i);
+	}
+
+
+
+	/** Calculates the traceback of the rows (start, end] out of the
+		checkpoint at row start.*/
+	private void segment(int start, int end) {
+		int rows = end - start, cols = model.matnr + 1;
+		if (sg.length < rows)
+			sg = new byte[rows][cols];
+
+		double[] pM = aM, pI = aI, pD = aD, cM = bM, cI = bI, cD = bD, t;
+		System.arraycopy(cpM[start / k], 0, pM, 0, cols);
+		System.arraycopy(cpI[start / k], 0, pI, 0, cols);
+		System.arraycopy(cpD[start / k], 0, pD, 0, cols);
+
+		cells += (long) rows * model.matnr;
+		for (int i = start + 1; i <= end; i++) {
+			int r = i - start - 1;
+			ViterbiKernel.row(model, dsq[i-1], pM, pI, pD, cM, cI, cD, sg[r]);
+
+			t = pM; pM = cM; cM = t;
+			t = pI; pI = cI; cI = t;
+			t = pD; pD = cD; cD = t;
+		}
+	}
+
+
+
+	/** Number of calculated cells of the last sequence: the forward pass and
+		the segments that were calculated again for the backtracking until
+		now.*/
+	long cells() {
+		return cells;
+	}
+
+
+
+	/** Saves a row as checkpoint c.*/
+	private void save(int c, double[] m, double[] i, double[] d) {
+		System.arraycopy(m, 0, cpM[c], 0, m.length);
+		System.arraycopy(i, 0, cpI[c], 0, i.length);
+		System.arraycopy(d, 0, cpD[c], 0, d.length);
+	}
+
+
+
+	/** Enlarges a matrix to the given number of rows, existing rows are kept.*/
+	private static double[][] grow(double[][] m, int rows, int cols) {
+		double[][] ret = Arrays.copyOf(m, rows);
+		for (int i = m.length; i < rows; i++)
+			ret[i] = new double[cols];
+		return ret;
+	}
+
+}
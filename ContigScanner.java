@@ -0,0 +1,255 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+/** Scanning mode for long sequences (contigs, genomes): finds the hits of
+	the model (e.g. rRNA genes) inside the sequences of a FASTA file with the
+	local Viterbi-Algorithm (see LocalViterbi) on both strands. The sequences
+	are streamed in chunks of CHUNK residues (FastaReader.read), every chunk
+	is scanned on both strands together with 2 * matnr residues of each
+	neighbour, so a hit that crosses the border of two chunks is found
+	completely, but reported only by the chunk where it ends. The
+	chunks of a batch are scanned in parallel on a ForkJoinPool (every thread
+	has its own LocalViterbi), so the memory only depends on the number of
+	threads and the size of the model, not on the length of the sequences.
+	The default threshold is a bound of the local log-odds: a null sequence
+	reaches a log-odds of at least x with one of its (L * matnr)
+	beginnings with a probability of at most L * matnr * e^-x, so
+	threshold = log(10^6 * matnr / p) allows p false hits per megabase.*/
+final class ContigScanner {
+
+	//default size of the chunks (residues)
+	static final int CHUNK = 1 << 18;
+	//default number of false hits per megabase
+	static final double DEFAULT_P = 0.01;
+
+	/** A hit on a sequence of the FASTA file.*/
+	static final class Hit {
+		//identifier of the sequence
+		final String contig;
+		//true -> reverse complement
+		final boolean minus;
+		//first & last residue on the plus strand (1-based, inclusive) and
+		//the first & last match node of the hit
+		final long from, to;
+		final int kfrom, kto;
+		//log-odds score
+		final double score;
+
+		Hit(String contig, boolean minus, long from, long to, int kfrom,
+				int kto, double score) {
+			this.contig = contig;
+			this.minus = minus;
+			this.from = from;
+			this.to = to;
+			this.kfrom = kfrom;
+			this.kto = kto;
+			this.score = score;
+		}
+
+		/** Line of the output (tab separated, see HEADER).*/
+		public String toString() {
+			return contig+"\t"+(minus ? '-' : '+')+"\t"+from+"\t"+to+"\t"
+				+kfrom+"\t"+kto+"\t"+score;
+		}
+	}
+
+	//columns of the output
+	static final String HEADER =
+		"#sequence\tstrand\tfrom\tto\tmodel from\tmodel to\tscore";
+
+	//complement of the codes (the code of unknown residues stays)
+	private static final byte[] COMPLEMENT = {3, 2, 1, 0, LocalViterbi.UNKNOWN};
+	//codes of the characters: A, C, G, U/T -> 0..3, else UNKNOWN
+	private static final byte[] code = new byte[256];
+	static {
+		Arrays.fill(code, LocalViterbi.UNKNOWN);
+		code['A'] = 0; code['C'] = 1; code['G'] = 2; code['U'] = 3;
+		code['T'] = 3;
+		code['a'] = 0; code['c'] = 1; code['g'] = 2; code['u'] = 3;
+		code['t'] = 3;
+	}
+
+	//the trained model
+	private final PHMM model;
+	//pool for the scanners & one scanner per thread
+	private final ForkJoinPool pool;
+	private final ThreadLocal<LocalViterbi> scanners;
+	//size of the chunks, residues of the neighbours & chunks per batch
+	private final int chunk, overlap, batch;
+	//minimal log-odds score of a hit
+	private final double threshold;
+
+
+
+	/** Creates a scanner with the given number of threads.
+		@param model Trained PHMM
+		@param threads Number of threads (at least 1)
+		@param chunk Size of the chunks (residues)
+		@param threshold Minimal log-odds score of a hit*/
+	ContigScanner(PHMM model, int threads, int chunk, double threshold) {
+		if (threads < 1)
+			throw new IllegalArgumentException("The number of threads must be "
+				+"at least 1 and not "+threads);
+		if (chunk < 1)
+			throw new IllegalArgumentException("The chunks must have at least "
+				+"1 residue and not "+chunk);
+		this.model = model;
+		this.pool = new ForkJoinPool(threads);
+		this.scanners = ThreadLocal.withInitial(() -> new LocalViterbi(model));
+		this.chunk = chunk;
+		//a hit is rarely longer than twice the model
+		this.overlap = 2 * model.matnr;
+		this.batch = 2 * threads;
+		this.threshold = threshold;
+	}
+
+
+
+	/** Default threshold for the model (p false hits per megabase).*/
+	static double threshold(PHMM model, double p) {
+		return Math.log(1e6 * model.matnr / p);
+	}
+
+
+
+	/** Scans all sequences of a FASTA file.
+		@param path Path to the FASTA file
+		@param out Receiver of the hits (per sequence in the order of their
+			positions)
+		@return Number of the scanned residues*/
+	long scan(String path, Consumer<Hit> out) throws IOException {
+		long residues = 0;
+		try (FastaReader r = new FastaReader(path)) {
+			while (r.nextHeader())
+				residues += scan(r, out);
+		}
+		return residues;
+	}
+
+
+
+	/** Scans the sequence of the actual record of the reader in chunks.
+		@return Length of the sequence*/
+	private long scan(FastaReader r, Consumer<Hit> out) throws IOException {
+		//only the identifier (up to the first whitespace)
+		String name = r.header().trim().split("\\s", 2)[0];
+		//window of the sequence: win[0..have) are the residues at
+		//winStart.. (at most overlap + chunk + overlap)
+		byte[] win = new byte[chunk + 2 * overlap];
+		int have = 0;
+		long winStart = 0, core = 0;
+		boolean eof = false;
+		ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+
+		while (true) {
+			//the chunk and the residues behind it
+			int need = (int) (core - winStart) + chunk + overlap;
+			while (have < need && !eof) {
+				int k = r.read(win, have, need - have);
+				if (k == 0)
+					eof = true;
+				for (int x = have; x < have + k; x++)
+					win[x] = code[win[x] & 0xff];
+				have += k;
+			}
+			long end = Math.min(core + chunk, winStart + have);
+			if (end <= core)
+				break;
+
+			int a = (int) Math.max(0, core - overlap - winStart);
+			chunks.add(new Chunk(Arrays.copyOfRange(win, a, have),
+				winStart + a, core, end));
+			if (chunks.size() == batch) {
+				scan(chunks, name, out);
+				chunks.clear();
+			}
+
+			//keep the overlap in front of the next chunk
+			core = end;
+			int shift = (int) Math.max(0, core - overlap - winStart);
+			System.arraycopy(win, shift, win, 0, have - shift);
+			have -= shift;
+			winStart += shift;
+		}
+		scan(chunks, name, out);
+		return winStart + have;
+	}
+
+
+
+	/** A chunk of a sequence: the residues core..end (exclusive) and their
+		neighbours, data[0] is the residue at start.*/
+	private static final class Chunk {
+		final byte[] data;
+		final long start, core, end;
+		//hits on both strands
+		final ArrayList<Hit> hits = new ArrayList<Hit>();
+
+		Chunk(byte[] data, long start, long core, long end) {
+			this.data = data;
+			this.start = start;
+			this.core = core;
+			this.end = end;
+		}
+	}
+
+
+
+	/** Scans a batch of chunks in parallel and gives out their hits in the
+		order of the chunks.*/
+	private void scan(ArrayList<Chunk> chunks, String name, Consumer<Hit> out) {
+		Runnable task = () -> IntStream.range(0, 2 * chunks.size()).parallel()
+			.forEach(t -> scan(chunks.get(t / 2), t % 2 == 1, name));
+		BatchScorer.await(pool, task, "Scanning");
+
+		for (Chunk c : chunks) {
+			c.hits.sort(Comparator.comparingLong((Hit h) -> h.from)
+				.thenComparingLong(h -> h.to));
+			c.hits.forEach(out);
+		}
+	}
+
+
+
+	/** Scans one strand of a chunk.*/
+	private void scan(Chunk c, boolean minus, String name) {
+		LocalViterbi v = scanners.get();
+		long t = Stats.start();
+		ArrayList<Hit> hits = new ArrayList<Hit>();
+		//the chunk with its neighbours, so the hits that end in the chunk
+		//are complete (also if they reach over the border)
+		int n = c.data.length;
+		if (!minus)
+			v.scan(c.data, n, (int) (c.core - c.start),
+				(int) (c.end - c.start), threshold,
+				(from, to, k1, k2, s) -> hits.add(new Hit(name, false,
+					c.start + from + 1, c.start + to + 1, k1, k2, s)));
+		else {
+			//reverse complement, index x is the residue at last - x
+			long last = c.start + n - 1;
+			byte[] rc = new byte[n];
+			for (int x = 0; x < n; x++)
+				rc[x] = COMPLEMENT[c.data[n - 1 - x]];
+			v.scan(rc, n, (int) (last + 1 - c.end),
+				(int) (last + 1 - c.core), threshold,
+				(from, to, k1, k2, s) -> hits.add(new Hit(name, true,
+					last - to + 1, last - from + 1, k1, k2, s)));
+		}
+		Stats.stop(Stats.Stage.VITERBI, t, 0, (long) n * model.matnr);
+
+		synchronized (c) {
+			c.hits.addAll(hits);
+		}
+	}
+
+
+
+	/** Stops the threads of the pool.*/
+	void shutdown() {
+		pool.shutdown();
+	}
+
+}
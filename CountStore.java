@@ -0,0 +1,325 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.zip.CRC32;
+
+/** Counts of a training (sufficient statistics of the PHMM): the number of
+	gaps & the emissions of every column of the MSA and the transitions
+	between the match nodes. The probabilities of the model are estimated
+	out of these counts only, so new aligned sequences (with the same columns)
+	can be added in a time that depends only on the new sequences and two
+	stores (e.g. of shards of the MSA) can be merged.
+	The matchpositions are fixed when the store is created (like the
+	architecture of the model), the transitions of new sequences are counted
+	with them. If the new sequences would move a column over the 50% gap
+	limit, driftedColumns() reports it (then a new training is necessary to
+	get the same model as with the whole MSA). Shards of a MSA must be
+	counted with the same matchpositions to be mergeable (see emptyCopy()).
+	The file format is the one of ModelFile with the magic "PHMC":
+		int magic, int version, long length of the data, long CRC32 of the data
+	and the data (big endian):
+		long sequences, int columns, isMatch (1 byte per column), gaps (int
+		per column), ecounts (4 ints per column), int rows & int columns of
+		tcounts and its ints row by row
+	Not thread-safe.*/
+final class CountStore {
+
+	//"PHMC" and version of the format
+	static final int MAGIC = 0x50484D43, VERSION = 1;
+	//size of the header in bytes
+	private static final int HEADER = 4 + 4 + 8 + 8;
+
+	//matchpositions (columns of the MSA) and their number
+	private final boolean[] isMatch;
+	private final int matnr;
+	//number of gaps [column], emissions [column][base] & transitions
+	//[node][ST]
+	private final int[] gaps;
+	private final int[][] ecounts, tcounts;
+	//number of counted sequences
+	private long sequences;
+
+
+
+	/** Creates a store with the counts of a training, all arrays are copied.
+		@param isMatch Matchpositions of the MSA
+		@param gaps Number of gaps in each column
+		@param ecounts Counts of the emissions [column][base]
+		@param tcounts Counts of the transitions [node][ST]
+		@param sequences Number of the counted sequences*/
+	CountStore(boolean[] isMatch, int[] gaps, int[][] ecounts,
+			int[][] tcounts, long sequences) {
+		if (gaps.length != isMatch.length || ecounts.length != isMatch.length)
+			throw new IllegalArgumentException("The counts must have "
+				+isMatch.length+" columns");
+		int m = 0;
+		for (boolean b : isMatch)
+			if (b)
+				m++;
+		if (tcounts.length != m + 1)
+			throw new IllegalArgumentException("The transitions must have "
+				+(m + 1)+" rows and not "+tcounts.length);
+
+		this.isMatch = isMatch.clone();
+		this.matnr = m;
+		this.gaps = gaps.clone();
+		this.ecounts = copy(ecounts);
+		this.tcounts = copy(tcounts);
+		this.sequences = sequences;
+	}
+
+
+
+	/** Creates an empty store with the matchpositions of this one (for
+		shards of a MSA that shall be merged afterwards).*/
+	CountStore emptyCopy() {
+		return new CountStore(isMatch, new int[isMatch.length],
+			new int[isMatch.length][4],
+			new int[matnr + 1][RNASequenceTrain.ST.values().length], 0);
+	}
+
+
+
+	/** Counts new aligned sequences into the store. The store is only
+		changed, if all sequences are valid.
+		@param seq Aligned sequences (with the columns of the store)
+		@throws IllegalArgumentException If a sequence has another length or
+			an invalid character*/
+	void add(PackedSeq[] seq) {
+		int cols = isMatch.length;
+		for (int i = 0; i < seq.length; i++)
+			if (seq[i].length() != cols)
+				throw new IllegalArgumentException("The sequence "+i+" has "
+					+seq[i].length()+" columns and not "+cols);
+
+		//count into new arrays first
+		int[] g = new int[cols];
+		int[][] e = new int[cols][];
+		int[][] t = new int[matnr + 1][RNASequenceTrain.ST.values().length];
+		for (int j = 0; j < cols; j++) {
+			e[j] = RNASequenceTrain.countEmissions(seq, j);
+			for (PackedSeq s : seq)
+				if (s.isGap(j))
+					g[j]++;
+		}
+		for (PackedSeq s : seq)
+			RNASequenceTrain.countTransitions(s, isMatch, t);
+
+		add(g, e, t, seq.length);
+	}
+
+
+
+	/** Adds the counts of another store (e.g. of another shard of the MSA).
+		@param other Store with the same matchpositions
+		@throws IllegalArgumentException If the matchpositions differ*/
+	void merge(CountStore other) {
+		if (!java.util.Arrays.equals(isMatch, other.isMatch))
+			throw new IllegalArgumentException("The count stores have "
+				+"different matchpositions");
+		add(other.gaps, other.ecounts, other.tcounts, other.sequences);
+	}
+
+
+
+	/** Adds counts (checks for overflows first).*/
+	private void add(int[] g, int[][] e, int[][] t, long n) {
+		try {
+			for (int j = 0; j < gaps.length; j++) {
+				Math.addExact(gaps[j], g[j]);
+				for (int x = 0; x < ecounts[j].length; x++)
+					Math.addExact(ecounts[j][x], e[j][x]);
+			}
+			for (int j = 0; j < tcounts.length; j++)
+				for (int x = 0; x < tcounts[j].length; x++)
+					Math.addExact(tcounts[j][x], t[j][x]);
+		} catch (ArithmeticException ex) {
+			throw new IllegalArgumentException("Too many counts for the "
+				+"count store", ex);
+		}
+
+		for (int j = 0; j < gaps.length; j++) {
+			gaps[j] += g[j];
+			for (int x = 0; x < ecounts[j].length; x++)
+				ecounts[j][x] += e[j][x];
+		}
+		for (int j = 0; j < tcounts.length; j++)
+			for (int x = 0; x < tcounts[j].length; x++)
+				tcounts[j][x] += t[j][x];
+		sequences += n;
+	}
+
+
+
+	/** Number of columns whose matchposition would be another one with all
+		counted sequences (more than 50% gaps -> no matchposition).*/
+	int driftedColumns() {
+		int n = 0;
+		for (int j = 0; j < isMatch.length; j++)
+			if ((2 * (long) gaps[j] < sequences) != isMatch[j])
+				n++;
+		return n;
+	}
+
+
+
+	/** Matchpositions (copy).*/
+	boolean[] isMatch() {
+		return isMatch.clone();
+	}
+
+
+
+	/** Number of matchpositions.*/
+	int matnr() {
+		return matnr;
+	}
+
+
+
+	/** Number of gaps in each column (copy).*/
+	int[] gaps() {
+		return gaps.clone();
+	}
+
+
+
+	/** Counts of the emissions [column][base] (copy).*/
+	int[][] ecounts() {
+		return copy(ecounts);
+	}
+
+
+
+	/** Counts of the transitions [node][ST] (copy).*/
+	int[][] tcounts() {
+		return copy(tcounts);
+	}
+
+
+
+	/** Number of the counted sequences.*/
+	long sequences() {
+		return sequences;
+	}
+
+
+
+	/** Saves the store into a file.
+		@param path Path to the file (is overwritten)*/
+	void save(String path) throws IOException {
+		int cols = isMatch.length;
+		int width = tcounts[0].length;
+		long size = 8 + 4 + cols + 4L * cols + 16L * cols + 8
+			+ 4L * tcounts.length * width;
+		if (size > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("The count store is too big "
+				+"for a file ("+size+" bytes)");
+
+		ByteBuffer data = ByteBuffer.allocate((int) size);
+		data.putLong(sequences);
+		data.putInt(cols);
+		for (boolean b : isMatch)
+			data.put((byte) (b ? 1 : 0));
+		for (int g : gaps)
+			data.putInt(g);
+		for (int[] e : ecounts)
+			for (int c : e)
+				data.putInt(c);
+		data.putInt(tcounts.length);
+		data.putInt(width);
+		for (int[] t : tcounts)
+			for (int c : t)
+				data.putInt(c);
+		data.flip();
+
+		CRC32 crc = new CRC32();
+		crc.update(data.duplicate());
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		header.putInt(MAGIC).putInt(VERSION).putLong(size)
+			.putLong(crc.getValue()).flip();
+
+		try (FileChannel ch = FileChannel.open(Paths.get(path),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (header.hasRemaining())
+				ch.write(header);
+			while (data.hasRemaining())
+				ch.write(data);
+		}
+	}
+
+
+
+	/** Loads a store out of a file.
+		@param path Path to the file
+		@return The saved store
+		@throws IOException If the file is no count file, has another version
+			or is damaged (wrong checksum)*/
+	static CountStore load(String path) throws IOException {
+		try (FileChannel ch = FileChannel.open(Paths.get(path),
+				StandardOpenOption.READ)) {
+			long fsize = ch.size();
+			if (fsize < HEADER)
+				throw new IOException(path+" is no count file (too short)");
+			MappedByteBuffer buf =
+				ch.map(FileChannel.MapMode.READ_ONLY, 0, fsize);
+
+			if (buf.getInt() != MAGIC)
+				throw new IOException(path+" is no count file");
+			int version = buf.getInt();
+			if (version != VERSION)
+				throw new IOException("The count file "+path+" has the "
+					+"version "+version+" and not "+VERSION);
+			long size = buf.getLong();
+			long checksum = buf.getLong();
+			if (size != fsize - HEADER)
+				throw new IOException("The count file "+path+" is damaged "
+					+"(length "+(fsize - HEADER)+" instead of "+size+")");
+
+			ByteBuffer data = buf.slice();
+			CRC32 crc = new CRC32();
+			crc.update(data.duplicate());
+			if (crc.getValue() != checksum)
+				throw new IOException("The count file "+path+" is damaged "
+					+"(wrong checksum)");
+
+			try {
+				long sequences = data.getLong();
+				int cols = data.getInt();
+				boolean[] isMatch = new boolean[cols];
+				for (int j = 0; j < cols; j++)
+					isMatch[j] = data.get() != 0;
+				int[] gaps = new int[cols];
+				for (int j = 0; j < cols; j++)
+					gaps[j] = data.getInt();
+				int[][] ecounts = new int[cols][4];
+				for (int[] e : ecounts)
+					for (int x = 0; x < e.length; x++)
+						e[x] = data.getInt();
+				int[][] tcounts = new int[data.getInt()][data.getInt()];
+				for (int[] t : tcounts)
+					for (int x = 0; x < t.length; x++)
+						t[x] = data.getInt();
+
+				return new CountStore(isMatch, gaps, ecounts, tcounts,
+					sequences);
+			} catch (BufferUnderflowException | IllegalArgumentException
+					| NegativeArraySizeException e) {
+				throw new IOException("The count file "+path+" is damaged", e);
+			}
+		}
+	}
+
+
+
+	/** Deep copy of a matrix.*/
+	private static int[][] copy(int[][] m) {
+		int[][] ret = new int[m.length][];
+		for (int i = 0; i < m.length; i++)
+			ret[i] = m[i].clone();
+		return ret;
+	}
+
+}
@@ -0,0 +1,277 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+/** Streaming reader for (multi-line) FASTA files: the file is memory-mapped
+	in windows of WINDOW bytes (with a FileChannel), so files of several GB
+	are read in constant memory. The records are given out one after another
+	with next(), the sequence is saved as bytes (ASCII, line breaks &
+	whitespaces removed) in a buffer that is reused for the next record.
+	Sequences that are too long for the memory (contigs, chromosomes) can be
+	read in parts with nextHeader() & read(..) instead.
+	Lines that start with ';' are comments and are ignored, the lines of a
+	sequence may be wrapped at any length. Instead of a file also a stream
+	(e.g. the body of a request of the ScoringServer) can be read, through a
+	buffer of BUFFER bytes. An object must not be shared between threads.*/
+final class FastaReader implements Closeable {
+
+	//size of the mapped windows of the file & of the buffer of a stream
+	static final int WINDOW = 1 << 26, BUFFER = 1 << 16;
+
+	//the file (null for a stream) and its size
+	private final FileChannel channel;
+	private final long size;
+	//the stream (null for a file) and its buffer
+	private final InputStream in;
+	private byte[] buffer;
+	private int bufferPos, bufferLen;
+
+	//actual window and its position in the file
+	private MappedByteBuffer window;
+	private long windowStart;
+
+	//the actual record
+	private String header;
+	private byte[] seq = new byte[1024];
+	private int len;
+	//header of the next record (already read), null -> end of the file
+	private String nextHeader;
+	//true, if the sequence of the actual record is not read completely
+	private boolean inSequence;
+	//number of the records that were read
+	private long count;
+
+	//buffer for the header lines
+	private byte[] line = new byte[256];
+
+
+
+	/** Opens the file and reads up to the first header.
+		@param path Path to the FASTA file*/
+	FastaReader(String path) throws IOException {
+		channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+		size = channel.size();
+		in = null;
+		windowStart = 0;
+		map(0);
+		start();
+	}
+
+
+
+	/** Reads a stream up to the first header, the stream is closed with
+		close().
+		@param in Stream with FASTA records*/
+	FastaReader(InputStream in) throws IOException {
+		channel = null;
+		size = -1;
+		this.in = in;
+		buffer = new byte[BUFFER];
+		start();
+	}
+
+
+
+	/** Reads up to the first header.*/
+	private void start() throws IOException {
+		//everything in front of the first header is ignored
+		int c;
+		while ((c = read()) >= 0 && c != '>')
+			if (c != '\n')
+				skipLine();
+		nextHeader = (c == '>') ? readLine() : null;
+	}
+
+
+
+	/** Reads the next record.
+		@return False, if there are no more records*/
+	boolean next() throws IOException {
+		if (!nextHeader())
+			return false;
+
+		int n;
+		while ((n = read(seq, len, seq.length - len)) > 0) {
+			len += n;
+			if (len == seq.length)
+				seq = java.util.Arrays.copyOf(seq, 2 * len);
+		}
+		return true;
+	}
+
+
+
+	/** Reads only the header of the next record, its sequence can be read
+		in parts with read(..) afterwards (the rest of the sequence of the
+		actual record is skipped). sequence() & length() are not valid then.
+		@return False, if there are no more records*/
+	boolean nextHeader() throws IOException {
+		while (sequenceChar() >= 0)
+			;
+		if (nextHeader == null)
+			return false;
+
+		header = nextHeader;
+		nextHeader = null;
+		len = 0;
+		inSequence = true;
+		count++;
+		return true;
+	}
+
+
+
+	/** Reads the next part of the sequence of the actual record (see
+		nextHeader()).
+		@param dst Array for the characters (ASCII)
+		@param off Index of the first character in dst
+		@param n Maximal number of characters
+		@return Number of the characters that were read, 0 at the end of the
+			sequence*/
+	int read(byte[] dst, int off, int n) throws IOException {
+		int k = 0, c;
+		while (k < n && (c = sequenceChar()) >= 0)
+			dst[off + k++] = (byte) c;
+		return k;
+	}
+
+
+
+	/** Header of the actual record (without '>').*/
+	String header() {
+		return header;
+	}
+
+
+
+	/** Sequence of the actual record as ASCII bytes (the first length()
+		ones are valid), the buffer is reused for the next record.*/
+	byte[] sequence() {
+		return seq;
+	}
+
+
+
+	/** Length of the sequence of the actual record.*/
+	int length() {
+		return len;
+	}
+
+
+
+	/** Sequence of the actual record packed (2 bits per base).*/
+	PackedSeq packed() {
+		return PackedSeq.of(seq, len);
+	}
+
+
+
+	/** Number of the records that were read until now.*/
+	long count() {
+		return count;
+	}
+
+
+
+	/** Reads up to n records into the array (packed).
+		@param dst Array for the sequences
+		@param n Maximal number of records
+		@return Number of the records that were read*/
+	int next(PackedSeq[] dst, int n) throws IOException {
+		int i = 0;
+		while (i < n && next())
+			dst[i++] = packed();
+		return i;
+	}
+
+
+
+	/** Next character of the sequence of the actual record, -1 at its end
+		(then the header of the next record is read).*/
+	private int sequenceChar() throws IOException {
+		while (inSequence) {
+			int c = read();
+			if (c < 0)
+				inSequence = false;
+			else if (c == '>') {
+				nextHeader = readLine();
+				inSequence = false;
+			}
+			else if (c == ';')
+				skipLine();
+			else if (c > ' ')
+				return c;
+		}
+		return -1;
+	}
+
+
+
+	/** Reads the rest of the actual line (without the line break).*/
+	private String readLine() throws IOException {
+		int n = 0, c;
+		while ((c = read()) >= 0 && c != '\n') {
+			if (n == line.length)
+				line = java.util.Arrays.copyOf(line, 2 * n);
+			line[n++] = (byte) c;
+		}
+		if (n > 0 && line[n-1] == '\r')
+			n--;
+		return new String(line, 0, n, StandardCharsets.ISO_8859_1);
+	}
+
+
+
+	/** Skips the rest of the actual line.*/
+	private void skipLine() throws IOException {
+		int c;
+		while ((c = read()) >= 0 && c != '\n')
+			;
+	}
+
+
+
+	/** Next byte of the file (or stream), -1 at the end.*/
+	private int read() throws IOException {
+		if (in != null) {
+			if (bufferPos == bufferLen) {
+				bufferLen = in.read(buffer, 0, buffer.length);
+				bufferPos = 0;
+				if (bufferLen <= 0) {
+					bufferLen = 0;
+					return -1;
+				}
+			}
+			return buffer[bufferPos++] & 0xff;
+		}
+		if (!window.hasRemaining()) {
+			long pos = windowStart + window.limit();
+			if (pos >= size)
+				return -1;
+			map(pos);
+		}
+		return window.get() & 0xff;
+	}
+
+
+
+	/** Maps the window that starts at pos.*/
+	private void map(long pos) throws IOException {
+		windowStart = pos;
+		window = channel.map(FileChannel.MapMode.READ_ONLY, pos,
+			Math.min(WINDOW, size - pos));
+	}
+
+
+
+	/** Closes the file (or stream).*/
+	public void close() throws IOException {
+		if (in != null)
+			in.close();
+		else
+			channel.close();
+	}
+
+}
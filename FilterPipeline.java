@@ -0,0 +1,154 @@
+import java.util.concurrent.atomic.*;
+
+/** Acceleration pipeline in front of the full viterbi algorithm (like in
+	HMMER): every testsequence has to pass
+	1. the MSV filter: best ungapped diagonal segment (ViterbiKernel.msv),
+	2. the score-only viterbi algorithm (ViterbiWorker.score),
+	before the viterbi path is backtracked for the matchhit-method. Sequences
+	that are filtered out are Non-rRNA.
+	The thresholds are calibrated out of the model: a sequence passes a
+	filter, if its P-value under the null distribution of that score for its
+	length is at most p. The null distributions are fitted like the E-values
+	(see Calibration) to random sequences (uniform bases, the background)
+	when the pipeline is created: the MSV scores always, the viterbi scores
+	only if the model has no calibration (else that one is used). A bound of
+	the log-odds against the background would not do for the viterbi score,
+	because the lattice skips the prefix of a long sequence for free, so its
+	log-odds grows with L * log 4 even for random sequences.
+	The pipeline is shared by all threads, the counts for the pass rates are
+	atomic.*/
+final class FilterPipeline {
+
+	//default p-values of the filters (HMMER: F1 = 0.02, F2 = 0.001)
+	static final double DEFAULT_PMSV = 0.02, DEFAULT_PVIT = 0.001;
+	//default number of null sequences per length for the thresholds
+	static final int DEFAULT_NULLS = 50;
+
+	//the trained model
+	private final PHMM model;
+	//p-values of the filters for null sequences
+	private final double pmsv, pvit;
+	//null distributions of the MSV & the viterbi scores (per length)
+	private final Calibration msvNull, vitNull;
+	//thresholds for the matchhit-method
+	private final double qthr, lthr;
+
+	//number of sequences that entered / passed the stages
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong passedMSV = new AtomicLong();
+	private final AtomicLong passedViterbi = new AtomicLong();
+	private final AtomicLong accepted = new AtomicLong();
+
+
+
+	/** Creates a pipeline for the given model.
+		@param model Trained PHMM
+		@param pmsv P-value of the MSV filter
+		@param pvit P-value of the score-only viterbi filter
+		@param qthr Threshold for Q of the matchhit-method
+		@param lthr Threshold for L of the matchhit-method
+		@param nulls Number of null sequences per length (see Calibration)
+		@param kernel Kernel of the score-only mode for the null sequences
+		@param threads Number of threads for the null sequences*/
+	FilterPipeline(PHMM model, double pmsv, double pvit, double qthr,
+			double lthr, int nulls, ViterbiWorker.Kernel kernel, int threads) {
+		if (pmsv <= 0 || pmsv > 1 || pvit <= 0 || pvit > 1)
+			throw new IllegalArgumentException("The p-values of the filters "
+				+"must be in (0, 1] and not "+pmsv+", "+pvit);
+		this.model = model;
+		this.pmsv = pmsv;
+		this.pvit = pvit;
+		this.qthr = qthr;
+		this.lthr = lthr;
+
+		int[] lengths = Calibration.defaultLengths(model.matnr);
+		msvNull = Calibration.fit(model, lengths, nulls, 1, kernel, threads,
+			ViterbiWorker::msv);
+		vitNull = (model.calibration != null) ? model.calibration
+			: Calibration.fit(model, lengths, nulls, 1, kernel, threads);
+	}
+
+
+
+	/** True, if an MSV score of a sequence of length len passes the filter.*/
+	boolean passesMSV(double msv, int len) {
+		return msvNull.pValue(msv, len) <= pmsv;
+	}
+
+
+
+	/** True, if a viterbi score of a sequence of length len passes the
+		filter.*/
+	boolean passesViterbi(double score, int len) {
+		return vitNull.pValue(score, len) <= pvit;
+	}
+
+
+
+	/** Runs a testsequence through the pipeline.
+		@param w Worker of the actual thread
+		@param seq The testsequence
+		@param score Array for the viterbi score (NaN, if the sequence did not
+			pass the MSV filter)
+		@param index Index in score
+		@return True, if the sequence passed all stages and is rRNA according
+			to the matchhit-method*/
+	boolean classify(ViterbiWorker w, PackedSeq seq, double[] score,
+			int index) {
+		total.incrementAndGet();
+		int len = seq.length();
+
+		//DP cells of one pass over the sequence (for Stats)
+		long cells = (long) len * model.matnr;
+		long t = Stats.start();
+
+		//1. MSV filter
+		if (!passesMSV(w.msv(seq), len)) {
+			score[index] = Double.NaN;
+			Stats.stop(Stats.Stage.VITERBI, t, 1, cells);
+			return false;
+		}
+		passedMSV.incrementAndGet();
+
+		//2. score-only viterbi filter
+		double s = w.score(seq);
+		score[index] = s;
+		if (!passesViterbi(s, len)) {
+			Stats.stop(Stats.Stage.VITERBI, t, 1, 2 * cells);
+			return false;
+		}
+		passedViterbi.incrementAndGet();
+
+		//3. full viterbi with backtracking & matchhit-method (it counts its
+		//cells itself: band, checkpoints)
+		w.processViterbi(seq);
+		long full = w.cells();
+		t = Stats.stop(Stats.Stage.VITERBI, t, 1, 2 * cells + full);
+		boolean isrRNA = w.matchhitThreshold(qthr, lthr);
+		Stats.stop(Stats.Stage.BACKTRACK, t, 1, w.cells() - full);
+		if (isrRNA)
+			accepted.incrementAndGet();
+		return isrRNA;
+	}
+
+
+
+	/** Returns the pass rates of the stages (for the output).*/
+	String passRates() {
+		long n = total.get();
+		return "#Pipeline: "+n+" sequences"
+			+"\n#  MSV filter (p = "+pmsv+"):\t"+rate(passedMSV.get(), n)
+			+"\n#  Viterbi filter (p = "+pvit+"):\t"
+				+rate(passedViterbi.get(), passedMSV.get())
+			+"\n#  matchhit-method:\t"+rate(accepted.get(), passedViterbi.get());
+	}
+
+
+
+	/** Formats "passed/of (percent)".*/
+	private static String rate(long passed, long of) {
+		return passed+"/"+of+String.format(" (%.2f%%)",
+			(of == 0) ? 0.0 : 100.0 * passed / of);
+	}
+
+}
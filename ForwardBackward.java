@@ -0,0 +1,274 @@
+import java.util.*;
+
+/** Forward- & Backward-Algorithm of the PHMM (sum over all state paths
+	instead of the best one) for the expected counts of Baum-Welch, as scratch
+	space of one thread. The lattice is the one of the scoring (see
+	ViterbiKernel & ForwardKernel): free borders, so the path may skip a
+	prefix of the model (row 0) or of the sequence (column 0) for free, and it
+	ends in M of the last node at the last row. So Baum-Welch trains the same
+	topology that scores the sequences, and fragments are counted like the
+	complete sequences. Only the skipped prefix of the sequence is not free
+	here: every skipped residue has the probability of the uniform background
+	(SKIP, the null model of PathStats.logOdds). Without it skipping would be
+	more likely than any emission and EM would train the model to skip
+	nearly the whole sequence (long chains of deletes to the last node).
+	The values are logarithms (ForwardKernel, no scaling): the probability of
+	a whole alignment is far below the smallest double for long sequences and
+	far below the one of the borders of its rows, so it would vanish in any
+	scaled row. A cell only adds to the counts, if one of its states has a
+	posterior of at least e^-ForwardKernel.MAX (the others do not change the
+	sums), so most cells far from the alignment need no Math.exp. Like
+	CheckpointViterbi only every k-th forward row (k = ceil(sqrt(L+1))) is
+	saved, the rows between two checkpoints are calculated again in the
+	backward pass: memory O(sqrt(L) * matnr) at 3 passes over the matrices.
+	An object must not be shared between threads, but any number of objects can
+	share one (immutable) PHMM.*/
+final class ForwardBackward {
+
+	//rows of the transitions [node][ST] of the expected counts
+	private static final int MTM = RNASequenceTrain.ST.MTM.row,
+		MTI = RNASequenceTrain.ST.MTI.row, MTD = RNASequenceTrain.ST.MTD.row,
+		ITM = RNASequenceTrain.ST.ITM.row, ITI = RNASequenceTrain.ST.ITI.row,
+		ITD = RNASequenceTrain.ST.ITD.row, DTM = RNASequenceTrain.ST.DTM.row,
+		DTI = RNASequenceTrain.ST.DTI.row, DTD = RNASequenceTrain.ST.DTD.row;
+
+	private static final double NEGINF = Double.NEGATIVE_INFINITY;
+	//log. probability of a residue of the skipped prefix (background)
+	private static final double SKIP = Math.log(0.25);
+
+	//the trained model (compiled, logarithmized tables)
+	private final PHMM model;
+	//number of match nodes & columns of the matrices (matnr + 1)
+	private final int matnr, cols;
+
+	//checkpoints: forward rows 0, k, 2k, ... [checkpoint][column]
+	private double[][] cpM, cpI, cpD;
+	//forward rows of the actual segment [row - start][column]
+	private double[][] sgM, sgI, sgD;
+	//two backward rows each
+	private double[] aM, aI, aD, bM, bI, bD;
+
+	//the encoded sequence (not copied) and its length
+	private byte[] dsq;
+	private int len;
+	//distance between the checkpoints
+	private int k;
+	//logarithmized probability of the sequence (end of the last forward row)
+	private double z;
+
+
+
+	/** Creates the scratch space for the given model.
+		@param model Trained PHMM*/
+	ForwardBackward(PHMM model) {
+		this.model = model;
+		matnr = model.matnr;
+		cols = matnr + 1;
+		aM = new double[cols]; aI = new double[cols]; aD = new double[cols];
+		bM = new double[cols]; bI = new double[cols]; bD = new double[cols];
+		cpM = cpI = cpD = sgM = sgI = sgD = new double[0][];
+	}
+
+
+
+	/** Forward pass, saves the checkpoints for backward(..).
+		@param dsq Encoded sequence (see PackedSeq.codes), must not be changed
+			until the backward pass is done
+		@param len Length of the sequence
+		@return Logarithmized probability of the sequence (sum over all paths
+			of the lattice), -inf if it is not possible with the model (e.g.
+			emissions with probability 0 without pseudocounts)*/
+	double forward(byte[] dsq, int len) {
+		this.dsq = dsq;
+		this.len = len;
+		k = Math.max(1, (int) Math.ceil(Math.sqrt(len + 1)));
+
+		//checkpoint c is row c * k
+		int cps = len / k + 1;
+		if (cpM.length < cps) {
+			cpM = grow(cpM, cps, cols);
+			cpI = grow(cpI, cps, cols);
+			cpD = grow(cpD, cps, cols);
+		}
+
+		double[] pM = aM, pI = aI, pD = aD, cM = bM, cI = bI, cD = bD, t;
+		ViterbiKernel.firstRow(matnr, pM, pI, pD);
+		save(0, pM, pI, pD);
+		for (int i = 1; i <= len; i++) {
+			ForwardKernel.row(model, dsq[i-1], pM, pI, pD, cM, cI, cD,
+				i * SKIP);
+			if (i % k == 0)
+				save(i / k, cM, cI, cD);
+
+			t = pM; pM = cM; cM = t;
+			t = pI; pI = cI; cI = t;
+			t = pD; pD = cD; cD = t;
+		}
+
+		z = pM[matnr];
+		return (z > NEGINF) ? z : NEGINF;
+	}
+
+
+
+	/** Backward pass of the last forward pass: adds the expected numbers
+		(posterior probabilities) of the emissions & transitions of the
+		sequence to the counts. The segments between the checkpoints are
+		calculated again from back to front. Nothing is added, if the last
+		forward pass returned -inf.
+		@param em Expected emissions at match node j [j][base] (row 0 unused)
+		@param ei Expected emissions at insert node j [j][base]
+		@param tc Expected transitions [node][ST] (the layout of the counts of
+			the training, ..TM of the last node is the one to the end)*/
+	void backward(double[][] em, double[][] ei, double[][] tc) {
+		if (!(z > NEGINF))
+			return;
+
+		//next (i + 1) and actual (i) backward row
+		double[] nM = bM, nI = bI, nD = bD, cM = aM, cI = aI, cD = aD, t;
+		for (int start = (len / k) * k; start >= 0; start -= k) {
+			int end = Math.min(start + k - 1, len);
+			segment(start, end);
+
+			for (int i = end; i >= start; i--) {
+				if (i == len)
+					ForwardKernel.lastRow(matnr, cM, cI, cD);
+				else
+					ForwardKernel.backRow(model, dsq[i], i == 0, nM, nI, cM,
+						cI, cD);
+				int r = i - start;
+				count(i, sgM[r], sgI[r], sgD[r], cM, cI, cD, nM, nI, em, ei,
+					tc);
+
+				//actual row is the next one of row i - 1
+				t = nM; nM = cM; cM = t;
+				t = nI; nI = cI; cI = t;
+				t = nD; nD = cD; cD = t;
+			}
+		}
+
+		//every path ends in M of the last node at the last row
+		tc[matnr][MTM] += 1;
+	}
+
+
+
+	/** Adds the posteriors of the cells of row i: the emission of character i
+		and the transitions out of the states (to M_j+1 & I_j in row i + 1 with
+		the emission of character i + 1, to D_j+1 in row i). Only the
+		transitions of the forward lattice are counted: none into the insert of
+		node 0 (rows > 0) or the deletes of row 0.
+		@param fM Forward row i (fI, fD analog)
+		@param bM Backward row i (bI, bD analog)
+		@param nM Backward row i + 1 (nI analog, unused in the last row)*/
+	private void count(int i, double[] fM, double[] fI, double[] fD,
+			double[] bM, double[] bI, double[] bD, double[] nM, double[] nI,
+			double[][] em, double[][] ei, double[][] tc) {
+		double[] tMM = model.tMM, tIM = model.tIM, tDM = model.tDM;
+		double[] tMD = model.tMD, tID = model.tID, tDD = model.tDD;
+		double[] tMI = model.tMI, tII = model.tII, tDI = model.tDI;
+		double[] msc = model.msc, isc = model.isc;
+		double min = -ForwardKernel.MAX;
+		//character i (emitted by the states of this row), -1 in row 0
+		int x = (i > 0) ? dsq[i-1] : -1;
+		//emissions of character i + 1 by the successors
+		int off = (i < len) ? dsq[i] * cols : 0;
+
+		for (int j = 0; j <= matnr; j++) {
+			//log. posteriors of the states of the cell
+			double oM = fM[j] + bM[j] - z, oI = fI[j] + bI[j] - z;
+			double oD = fD[j] + bD[j] - z;
+			if (!(oM > min) && !(oI > min) && !(oD > min))
+				continue;
+
+			if (x >= 0) {
+				if (oM > min)
+					em[j][x] += Math.exp(oM);
+				if (oI > min)
+					ei[j][x] += Math.exp(oI);
+			}
+
+			//successors with their emission & backward value
+			double sM = (i < len && j < matnr)
+				? msc[off + j + 1] + nM[j+1] : NEGINF;
+			double sI = (i < len && j > 0) ? isc[off + j] + nI[j] : NEGINF;
+			double sD = (i > 0 && j < matnr) ? bD[j+1] : NEGINF;
+			double mM = (j < matnr) ? tMM[j+1] : NEGINF;
+			double iM = (j < matnr) ? tIM[j+1] : NEGINF;
+			double dM = (j < matnr) ? tDM[j+1] : NEGINF;
+			double mD = (j < matnr) ? tMD[j+1] : NEGINF;
+			double iD = (j < matnr) ? tID[j+1] : NEGINF;
+			double dD = (j < matnr) ? tDD[j+1] : NEGINF;
+
+			double[] t = tc[j];
+			if (oM > min) {
+				double f = fM[j] - z;
+				t[MTM] += exp(f + mM + sM);
+				t[MTI] += exp(f + tMI[j] + sI);
+				t[MTD] += exp(f + mD + sD);
+			}
+			if (oI > min) {
+				double f = fI[j] - z;
+				t[ITM] += exp(f + iM + sM);
+				t[ITI] += exp(f + tII[j] + sI);
+				t[ITD] += exp(f + iD + sD);
+			}
+			if (oD > min) {
+				double f = fD[j] - z;
+				t[DTM] += exp(f + dM + sM);
+				t[DTI] += exp(f + tDI[j] + sI);
+				t[DTD] += exp(f + dD + sD);
+			}
+		}
+	}
+
+
+
+	/** e^v, 0 for v <= -ForwardKernel.MAX (no Math.exp for the paths that
+		do not change the sums).*/
+	private static double exp(double v) {
+		return (v > -ForwardKernel.MAX) ? Math.exp(v) : 0;
+	}
+
+
+
+	/** Calculates the forward rows start..end out of the checkpoint at row
+		start into the segment.*/
+	private void segment(int start, int end) {
+		int rows = end - start + 1;
+		if (sgM.length < rows) {
+			sgM = grow(sgM, rows, cols);
+			sgI = grow(sgI, rows, cols);
+			sgD = grow(sgD, rows, cols);
+		}
+
+		System.arraycopy(cpM[start / k], 0, sgM[0], 0, cols);
+		System.arraycopy(cpI[start / k], 0, sgI[0], 0, cols);
+		System.arraycopy(cpD[start / k], 0, sgD[0], 0, cols);
+		for (int i = start + 1; i <= end; i++) {
+			int r = i - start;
+			ForwardKernel.row(model, dsq[i-1], sgM[r-1], sgI[r-1], sgD[r-1],
+				sgM[r], sgI[r], sgD[r], i * SKIP);
+		}
+	}
+
+
+
+	/** Saves a forward row as checkpoint c.*/
+	private void save(int c, double[] m, double[] i, double[] d) {
+		System.arraycopy(m, 0, cpM[c], 0, cols);
+		System.arraycopy(i, 0, cpI[c], 0, cols);
+		System.arraycopy(d, 0, cpD[c], 0, cols);
+	}
+
+
+
+	/** Enlarges a matrix to the given number of rows, existing rows are kept.*/
+	private static double[][] grow(double[][] m, int rows, int cols) {
+		double[][] ret = Arrays.copyOf(m, rows);
+		for (int i = m.length; i < rows; i++)
+			ret[i] = new double[cols];
+		return ret;
+	}
+
+}
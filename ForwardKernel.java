@@ -0,0 +1,164 @@
+/** The recurrences of the Forward- & Backward-Algorithm on the lattice of the
+	viterbi matrices (see ViterbiKernel: same borders, the path ends in M of the
+	last node at the last row), one row at a time. The values are logarithmized
+	sums over all paths instead of the best one; the sum of two logarithms is
+	read out of a table (log(1 + e^-d) with linear interpolation, error below
+	1e-7 per addition), so a cell needs no Math.exp/Math.log. Works on the
+	compiled model (see PHMM) and allocates nothing.*/
+final class ForwardKernel {
+
+	//table of log(1 + e^-d) for d = k / SCALE, k = 0 .. MAX * SCALE: value
+	//at [2k] and slope to the next entry at [2k+1]
+	private static final int SCALE = 1024;
+	static final double MAX = 40;	//log(1 + e^-40) < 1e-17
+	private static final double[] LOGSUM;
+	static {
+		int n = (int) (MAX * SCALE) + 1;
+		double[] v = new double[n + 1];
+		for (int k = 0; k <= n; k++)
+			v[k] = Math.log1p(Math.exp(- (double) k / SCALE));
+		LOGSUM = new double[2 * n];
+		for (int k = 0; k < n; k++) {
+			LOGSUM[2 * k] = v[k];
+			LOGSUM[2 * k + 1] = v[k+1] - v[k];
+		}
+	}
+
+
+
+	private ForwardKernel() {}
+
+
+
+	/** log(e^a + e^b) out of the table.*/
+	static double logsum(double a, double b) {
+		double max, d;
+		if (a >= b) {
+			max = a;
+			d = a - b;
+		}
+		else {
+			max = b;
+			d = b - a;
+		}
+		//also for -inf - -inf = NaN
+		if (!(d < MAX))
+			return max;
+		double x = d * SCALE;
+		int k = (int) x;
+		return max + LOGSUM[2 * k] + (x - k) * LOGSUM[2 * k + 1];
+	}
+
+
+
+	/** Calculates the forward row i > 0 out of row i - 1 (row 0 is the one of
+		ViterbiKernel.firstRow).
+		@param model Compiled model
+		@param x Code of the i-th character of the testsequence
+		@param pM Row i - 1 of fM (pI, pD analog)
+		@param cM Row i of fM, will be calculated (cI, cD analog)*/
+	static void row(PHMM model, int x, double[] pM, double[] pI, double[] pD,
+			double[] cM, double[] cI, double[] cD) {
+		row(model, x, pM, pI, pD, cM, cI, cD, 0);
+	}
+
+
+
+	/** Calculates the forward row i > 0 like row(..), but with the given
+		value of the delete of column 0 (the skipped prefix of the sequence,
+		0 = free like in the viterbi matrices, see ForwardBackward).
+		@param d0 Log. value of vD at column 0*/
+	static void row(PHMM model, int x, double[] pM, double[] pI, double[] pD,
+			double[] cM, double[] cI, double[] cD, double d0) {
+		int matnr = model.matnr;
+		double[] tMM = model.tMM, tIM = model.tIM, tDM = model.tDM;
+		double[] tMD = model.tMD, tID = model.tID, tDD = model.tDD;
+		double[] tMI = model.tMI, tII = model.tII, tDI = model.tDI;
+		double[] msc = model.msc, isc = model.isc;
+		int off = x * (matnr + 1);		//emissions of the i-th base
+
+		//first column like in the viterbi matrices (vD is d0 there)
+		cM[0] = Double.NEGATIVE_INFINITY;
+		cI[0] = Double.NEGATIVE_INFINITY;
+		cD[0] = d0;
+
+		for (int j = 1; j <= matnr; j++) {
+			cM[j] = msc[off + j] + logsum(logsum(pM[j-1] + tMM[j],
+				pI[j-1] + tIM[j]), pD[j-1] + tDM[j]);
+			cI[j] = isc[off + j] + logsum(logsum(pM[j] + tMI[j],
+				pI[j] + tII[j]), pD[j] + tDI[j]);
+			cD[j] = logsum(logsum(cM[j-1] + tMD[j], cI[j-1] + tID[j]),
+				cD[j-1] + tDD[j]);
+		}
+	}
+
+
+
+	/** Initializes the last backward row L: the path has to end in M of the
+		last node, nothing is emitted any more.*/
+	static void lastRow(int matnr, double[] cM, double[] cI, double[] cD) {
+		for (int j = 0; j <= matnr; j++) {
+			cM[j] = Double.NEGATIVE_INFINITY;
+			cI[j] = Double.NEGATIVE_INFINITY;
+			cD[j] = Double.NEGATIVE_INFINITY;
+		}
+		cM[matnr] = 0;
+	}
+
+
+
+	/** Calculates the backward row i < L out of row i + 1: the log. sum over
+		all ends of the path from the states of row i. Only the transitions of
+		the forward (viterbi) lattice are used: none into row 0, column 0 or
+		the insert of node 0.
+		@param model Compiled model
+		@param x Code of the (i+1)-th character of the testsequence
+		@param first True for row 0
+		@param nM Row i + 1 of bM (nI analog)
+		@param cM Row i of bM, will be calculated (cI, cD analog)*/
+	static void backRow(PHMM model, int x, boolean first, double[] nM,
+			double[] nI, double[] cM, double[] cI, double[] cD) {
+		int matnr = model.matnr;
+		double[] tMM = model.tMM, tIM = model.tIM, tDM = model.tDM;
+		double[] tMD = model.tMD, tID = model.tID, tDD = model.tDD;
+		double[] tMI = model.tMI, tII = model.tII, tDI = model.tDI;
+		double[] msc = model.msc, isc = model.isc;
+		int off = x * (matnr + 1);		//emissions of the (i+1)-th base
+
+		//last node: only the insert of the next row follows
+		double eI = isc[off + matnr] + nI[matnr];
+		cM[matnr] = tMI[matnr] + eI;
+		cI[matnr] = tII[matnr] + eI;
+		cD[matnr] = tDI[matnr] + eI;
+
+		for (int j = matnr - 1; j >= 0; j--) {
+			//successors: M_j+1 & I_j (row i + 1, emit), D_j+1 (row i)
+			double eM = msc[off + j + 1] + nM[j+1];
+			eI = (j > 0) ? isc[off + j] + nI[j] : Double.NEGATIVE_INFINITY;
+			double d = first ? Double.NEGATIVE_INFINITY : cD[j+1];
+			cM[j] = logsum(logsum(tMM[j+1] + eM, tMI[j] + eI), tMD[j+1] + d);
+			cI[j] = logsum(logsum(tIM[j+1] + eM, tII[j] + eI), tID[j+1] + d);
+			cD[j] = logsum(logsum(tDM[j+1] + eM, tDI[j] + eI), tDD[j+1] + d);
+		}
+	}
+
+
+
+	/** Posterior probability that the character of row i is emitted by a
+		match state.
+		@param fM Forward row i of the match states
+		@param bM Backward row i of the match states
+		@param score Forward score (log. sum over all paths)
+		@param matnr Number of match nodes*/
+	static double matchPosterior(double[] fM, double[] bM, double score,
+			int matnr) {
+		double sum = 0;
+		for (int j = 1; j <= matnr; j++) {
+			double v = fM[j] + bM[j] - score;
+			if (v > -MAX)		//smaller ones do not change the sum
+				sum += Math.exp(v);
+		}
+		return Math.min(1, sum);
+	}
+
+}
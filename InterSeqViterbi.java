@@ -0,0 +1,147 @@
+import jdk.incubator.vector.*;
+
+/** Score-only Viterbi-Algorithm for several testsequences at once on the Java
+	Vector API: every lane of a vector belongs to another sequence, so the
+	columns of the model are processed one after another like in the scalar
+	kernel (no lazy-F loop needed) and the transitions are the same for all
+	lanes. Only the emissions differ and are gathered per lane. A lane whose
+	sequence is shorter than the longest one just goes on with dummy bases,
+	its score is taken out at the row of its own length (length masking).
+	Works best for many sequences of similar length, even for short models
+	where striping (see StripedViterbi) does not pay off. The scores are
+	bit-identical to ViterbiKernel.
+	Needs the module jdk.incubator.vector. An object must not be shared
+	between threads.*/
+final class InterSeqViterbi {
+
+	//vector shape (preferred of the platform)
+	private final VectorSpecies<Double> species =
+		DoubleVector.SPECIES_PREFERRED;
+
+	//the trained model
+	private final PHMM model;
+	//number of lanes (= sequences at once)
+	final int V;
+
+	//rows of vM, vI & vD (previous & actual), [column * V + lane]
+	private double[] pM, pI, pD, cM, cI, cD;
+	//offsets of the emissions of the actual base per lane (base * (matnr+1))
+	private final int[] eidx;
+
+
+
+	/** Number of lanes (sequences at once) on this platform.*/
+	static int lanes() {
+		return DoubleVector.SPECIES_PREFERRED.length();
+	}
+
+
+
+	/** Creates the rows for the given model.
+		@param model Trained PHMM*/
+	InterSeqViterbi(PHMM model) {
+		this.model = model;
+		V = species.length();
+		int n = (model.matnr + 1) * V;
+		pM = new double[n]; pI = new double[n]; pD = new double[n];
+		cM = new double[n]; cI = new double[n]; cD = new double[n];
+		eidx = new int[V];
+	}
+
+
+
+	/** Score-only viterbi algorithm for up to V encoded testsequences.
+		@param dsq Encoded testsequences (see PackedSeq.codes), one per lane
+		@param len Lengths of the testsequences
+		@param n Number of sequences (at most V)
+		@param score Array for the scores of the viterbi paths (same as
+			ViterbiWorker.score(..)), score[l] belongs to dsq[l]*/
+	void score(byte[][] dsq, int[] len, int n, double[] score) {
+		if (n > V)
+			throw new IllegalArgumentException("At most "+V+" sequences at "
+				+"once and not "+n);
+
+		int matnr = model.matnr, cols = matnr + 1;
+		double NEGINF = Double.NEGATIVE_INFINITY;
+		double[] tMM = model.tMM, tIM = model.tIM, tDM = model.tDM;
+		double[] tMD = model.tMD, tID = model.tID, tDD = model.tDD;
+		double[] tMI = model.tMI, tII = model.tII, tDI = model.tDI;
+		double[] msc = model.msc, isc = model.isc;
+		DoubleVector floor =
+			DoubleVector.broadcast(species, - Double.MAX_VALUE);
+
+		//row 0: log(1.0) = 0 at column 0, vM -inf, vI 0, vD -inf
+		int maxlen = 0;
+		for (int l = 0; l < V; l++) {
+			pM[l] = 0;
+			pI[l] = NEGINF;
+			pD[l] = NEGINF;
+			if (l < n) {
+				maxlen = Math.max(maxlen, len[l]);
+				if (len[l] == 0)
+					score[l] = NEGINF;	//vM[0][matnr]
+			}
+		}
+		for (int k = V; k < cols * V; k++) {
+			pM[k] = NEGINF;
+			pI[k] = 0;
+			pD[k] = NEGINF;
+		}
+
+		for (int i = 1; i <= maxlen; i++) {
+			//emissions of the i-th base of every lane (lanes that are done
+			//or empty go on with base 0)
+			for (int l = 0; l < V; l++)
+				eidx[l] = (l < n && i <= len[l]) ? dsq[l][i-1] * cols : 0;
+
+			//first column -inf (vD is 0 there)
+			DoubleVector mc = DoubleVector.broadcast(species, NEGINF);
+			DoubleVector ic = DoubleVector.broadcast(species, NEGINF);
+			DoubleVector dc = DoubleVector.broadcast(species, 0);
+			mc.intoArray(cM, 0);
+			ic.intoArray(cI, 0);
+			dc.intoArray(cD, 0);
+
+			DoubleVector mp = DoubleVector.fromArray(species, pM, 0);
+			DoubleVector ip = DoubleVector.fromArray(species, pI, 0);
+			DoubleVector dp = DoubleVector.fromArray(species, pD, 0);
+
+			for (int j = 1, k = V; j <= matnr; j++, k += V) {
+				//vM: predecessors in column j - 1 of the previous row
+				DoubleVector m = floor.max(mp.add(tMM[j])).max(ip.add(tIM[j]))
+					.max(dp.add(tDM[j]));
+				m = DoubleVector.fromArray(species, msc, j, eidx, 0).add(m);
+				m.intoArray(cM, k);
+
+				//vI: column j of the previous row
+				mp = DoubleVector.fromArray(species, pM, k);
+				ip = DoubleVector.fromArray(species, pI, k);
+				dp = DoubleVector.fromArray(species, pD, k);
+				DoubleVector ins = floor.max(mp.add(tMI[j]))
+					.max(ip.add(tII[j])).max(dp.add(tDI[j]));
+				ins = DoubleVector.fromArray(species, isc, j, eidx, 0).add(ins);
+				ins.intoArray(cI, k);
+
+				//vD: column j - 1 of this row
+				dc = floor.max(mc.add(tMD[j])).max(ic.add(tID[j]))
+					.max(dc.add(tDD[j]));
+				dc.intoArray(cD, k);
+
+				mc = m;
+				ic = ins;
+			}
+
+			//termination of the lanes with this length
+			for (int l = 0; l < n; l++)
+				if (len[l] == i)
+					score[l] = cM[matnr * V + l];
+
+			//swap rows
+			double[] t;
+			t = pM; pM = cM; cM = t;
+			t = pI; pI = cI; cI = t;
+			t = pD; pD = cD; cD = t;
+		}
+	}
+
+}
@@ -0,0 +1,125 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/** Scores batches of testsequences against a library of trained models (e.g.
+	LSU, SSU & 5S) in one pass on a ForkJoinPool. Every sequence of a batch is
+	encoded only once (shared by all models), the tasks are the pairs of
+	sequence & model, so all threads have work also with few sequences or
+	models of different sizes. Every thread has one ViterbiWorker for all
+	models (see ViterbiWorker.setModel), the pairs are ordered by the model, so
+	a worker rarely switches the model. The results are written into arrays
+	at the index of the sequence & model, so the order of the input is kept.*/
+final class LibraryScorer {
+
+	//the trained models
+	private final PHMM[] models;
+	//pool for the workers
+	private final ForkJoinPool pool;
+	//one worker per thread of the pool
+	private final ThreadLocal<ViterbiWorker> workers;
+	//thresholds for the matchhit-method
+	private final double qthr, lthr;
+	//encoded sequences of the actual batch
+	private byte[][] codes = new byte[0][];
+
+
+
+	/** Creates a scorer with the given number of threads.
+		@param models Trained PHMMs (at least one)
+		@param threads Number of threads (at least 1)
+		@param maxCells Maximal number of cells of the full viterbi matrices
+			per thread, longer sequences are processed with checkpoints
+		@param qthr Threshold for Q of the matchhit-method
+		@param lthr Threshold for L of the matchhit-method*/
+	LibraryScorer(PHMM[] models, int threads, long maxCells, double qthr,
+			double lthr) {
+		if (threads < 1)
+			throw new IllegalArgumentException("The number of threads must be "
+				+"at least 1 and not "+threads);
+		if (models.length == 0)
+			throw new IllegalArgumentException("The library has no models");
+		this.models = models.clone();
+		this.pool = new ForkJoinPool(threads);
+		this.workers = ThreadLocal.withInitial(() -> new ViterbiWorker(
+			models[0], maxCells, ViterbiWorker.Kernel.SCALAR));
+		this.qthr = qthr;
+		this.lthr = lthr;
+	}
+
+
+
+	/** Number of models of the library.*/
+	int size() {
+		return models.length;
+	}
+
+
+
+	/** Scores the sequences seqs[0] to seqs[n - 1] with every model and
+		decides whether they are rRNA. The result of seqs[i] & model m is saved
+		at score[i][m] and isrRNA[i][m].
+		@param seqs Testsequences
+		@param n Number of sequences
+		@param score Array for the viterbi scores [sequence][model]
+		@param isrRNA Array for the decisions of the matchhit-method*/
+	void score(PackedSeq[] seqs, int n, double[][] score,
+			boolean[][] isrRNA) {
+		if (codes.length < n)
+			codes = Arrays.copyOf(codes, n);
+		int pairs = n * models.length;
+
+		Runnable task = () -> {
+			//encode once for all models
+			IntStream.range(0, n).parallel().forEach(i -> {
+				int l = seqs[i].length();
+				if (codes[i] == null || codes[i].length < l)
+					codes[i] = new byte[l];
+				seqs[i].codes(codes[i]);
+			});
+
+			//pair p: model p / n & sequence p % n
+			IntStream.range(0, pairs).parallel().forEach(p -> {
+				int m = p / n, i = p % n;
+				ViterbiWorker w = workers.get();
+				w.setModel(models[m]);
+
+				long t = Stats.start();
+				int l = seqs[i].length();
+				score[i][m] = w.processViterbi(codes[i], l);
+				//every sequence is counted once, the cells of every model
+				long cells = w.cells();
+				t = Stats.stop(Stats.Stage.VITERBI, t, (m == 0) ? 1 : 0,
+					cells);
+
+				isrRNA[i][m] = w.matchhitThreshold(qthr, lthr);
+				//segments calculated again for the traceback (checkpoints)
+				Stats.stop(Stats.Stage.BACKTRACK, t, (m == 0) ? 1 : 0,
+					w.cells() - cells);
+			});
+		};
+
+		BatchScorer.await(pool, task, "Scoring");
+	}
+
+
+
+	/** Index of the best model of a sequence: the highest viterbi score (the
+		first one, if several are equal).
+		@param score Scores of the sequence (one per model)*/
+	static int best(double[] score) {
+		int b = 0;
+		for (int m = 1; m < score.length; m++)
+			if (score[m] > score[b])
+				b = m;
+		return b;
+	}
+
+
+
+	/** Stops the threads of the pool.*/
+	void shutdown() {
+		pool.shutdown();
+	}
+
+}
@@ -0,0 +1,168 @@
+/** Local Viterbi-Algorithm for the scanning of long sequences (contigs): a
+	hit may begin at any match node (entry with the probability 1/matnr) and
+	end at any match node (exit with the probability 1), the residues in front
+	of and behind a hit are emitted by the background (uniform, like the null
+	model of FilterPipeline). All scores are log-odds against the background,
+	so a new hit starts with 0 (like Smith-Waterman) and the best hit ending
+	at residue i is max_j vM[i][j]. Only two rows are kept: with every cell
+	the residue & node where its hit began are carried along, so the
+	coordinates of the hits are known without backtracking and the memory does
+	not depend on the length of the scanned sequence.
+	Overlapping hits above the threshold are reduced to the best one of them.
+	Residues that are no base (N, ...) score like the background. A scanner
+	must not be shared between threads.*/
+final class LocalViterbi {
+
+	//code of the residues that are no base
+	static final byte UNKNOWN = 4;
+
+	/** Receiver of the hits of scan(..).*/
+	interface HitSink {
+		/** A hit of dsq[from..to] (inclusive) to the match nodes kfrom..kto
+			with the given log-odds score.*/
+		void hit(int from, int to, int kfrom, int kto, double score);
+	}
+
+	//the trained model
+	private final PHMM model;
+	//log-odds of the emissions at match- & insertpositions [code*(matnr+1)+j]
+	//(code UNKNOWN -> 0)
+	private final double[] lodM, lodI;
+	//logarithmized entry probability of every match node
+	private final double entry;
+
+	//two rows each of the viterbi matrices and of the starts of the hits
+	//((residue << 32) | node)
+	private double[] pM, pI, pD, cM, cI, cD;
+	private long[] sM, sI, sD, tM, tI, tD;
+
+
+
+	/** Creates a scanner for the given model.
+		@param model Trained PHMM*/
+	LocalViterbi(PHMM model) {
+		this.model = model;
+		int cols = model.matnr + 1;
+		double bg = Math.log(0.25);
+		lodM = new double[(UNKNOWN + 1) * cols];
+		lodI = new double[(UNKNOWN + 1) * cols];
+		for (int x = 0; x < UNKNOWN; x++)
+			for (int j = 1; j < cols; j++) {
+				lodM[x * cols + j] = model.msc[x * cols + j] - bg;
+				lodI[x * cols + j] = model.isc[x * cols + j] - bg;
+			}
+		entry = - Math.log(model.matnr);
+
+		pM = new double[cols]; pI = new double[cols]; pD = new double[cols];
+		cM = new double[cols]; cI = new double[cols]; cD = new double[cols];
+		sM = new long[cols]; sI = new long[cols]; sD = new long[cols];
+		tM = new long[cols]; tI = new long[cols]; tD = new long[cols];
+	}
+
+
+
+	/** Scans the encoded residues dsq[0..n) (codes 0..3 & UNKNOWN) and
+		reports the hits with at least the given score that end at an index in
+		[own, ownEnd) (the residues outside are only the overlap to the
+		neighbouring parts of a longer sequence, their hits are reported by
+		the neighbours).
+		@param dsq Encoded residues
+		@param n Number of residues
+		@param own First index where a hit may end
+		@param ownEnd Index behind the last one where a hit may end
+		@param threshold Minimal log-odds score of a hit
+		@param sink Receiver of the hits (in the order of their ends)*/
+	void scan(byte[] dsq, int n, int own, int ownEnd, double threshold,
+			HitSink sink) {
+		int matnr = model.matnr, cols = matnr + 1;
+		double[] tMM = model.tMM, tIM = model.tIM, tDM = model.tDM;
+		double[] tMD = model.tMD, tID = model.tID, tDD = model.tDD;
+		double[] tMI = model.tMI, tII = model.tII, tDI = model.tDI;
+		double ninf = Double.NEGATIVE_INFINITY;
+
+		//row "-1": no hit has begun
+		java.util.Arrays.fill(pM, ninf);
+		java.util.Arrays.fill(pI, ninf);
+		java.util.Arrays.fill(pD, ninf);
+		cM[0] = cI[0] = cD[0] = ninf;
+
+		//best hit of the actual group of overlapping hits
+		boolean has = false;
+		int hFrom = 0, hTo = 0, hK1 = 0, hK2 = 0;
+		double hScore = 0;
+
+		for (int i = 0; i < n; i++) {
+			int off = dsq[i] * cols;
+			double best = ninf;
+			int bestj = 0;
+
+			for (int j = 1; j <= matnr; j++) {
+				double max, s;
+				long st;
+
+				//vM: continuation of a hit (first maximum wins) or entry
+				max = pM[j-1] + tMM[j]; st = sM[j-1];
+				s = pI[j-1] + tIM[j];
+				if (max < s) { max = s; st = sI[j-1]; }
+				s = pD[j-1] + tDM[j];
+				if (max < s) { max = s; st = sD[j-1]; }
+				if (max < entry) { max = entry; st = ((long) i << 32) | j; }
+				cM[j] = lodM[off + j] + max;
+				tM[j] = st;
+				if (best < cM[j]) {
+					best = cM[j];
+					bestj = j;
+				}
+
+				//vI
+				max = pM[j] + tMI[j]; st = sM[j];
+				s = pI[j] + tII[j];
+				if (max < s) { max = s; st = sI[j]; }
+				s = pD[j] + tDI[j];
+				if (max < s) { max = s; st = sD[j]; }
+				cI[j] = lodI[off + j] + max;
+				tI[j] = st;
+
+				//vD
+				max = cM[j-1] + tMD[j]; st = tM[j-1];
+				s = cI[j-1] + tID[j];
+				if (max < s) { max = s; st = tI[j-1]; }
+				s = cD[j-1] + tDD[j];
+				if (max < s) { max = s; st = tD[j-1]; }
+				cD[j] = max;
+				tD[j] = st;
+			}
+
+			//hit ending here: the better one of overlapping hits stays
+			if (best >= threshold) {
+				long st = tM[bestj];
+				int from = (int) (st >>> 32), k1 = (int) st;
+				if (has && from <= hTo) {
+					if (best > hScore) {
+						hFrom = from; hTo = i; hK1 = k1; hK2 = bestj;
+						hScore = best;
+					}
+				}
+				else {
+					if (has && hTo >= own && hTo < ownEnd)
+						sink.hit(hFrom, hTo, hK1, hK2, hScore);
+					has = true;
+					hFrom = from; hTo = i; hK1 = k1; hK2 = bestj;
+					hScore = best;
+				}
+			}
+
+			//swap rows
+			double[] t = pM; pM = cM; cM = t;
+			t = pI; pI = cI; cI = t;
+			t = pD; pD = cD; cD = t;
+			long[] u = sM; sM = tM; tM = u;
+			u = sI; sI = tI; tI = u;
+			u = sD; sD = tD; tD = u;
+		}
+
+		if (has && hTo >= own && hTo < ownEnd)
+			sink.hit(hFrom, hTo, hK1, hK2, hScore);
+	}
+
+}
@@ -0,0 +1,211 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.zip.CRC32;
+
+/** Binary file of a trained PHMM, so the training has to be done only once.
+	The file holds the matchpositions, the emission- & transitionprobabilities
+	and the compiled log tables of the model (so nothing is calculated again
+	when loading), in front of them a header:
+		int magic ("PHMM"), int version, long length of the data, long CRC32
+		of the data
+	The data (big endian):
+		int matnr, int columns of the MSA, isMatch (1 byte per column),
+		eprobmat, eprobins & tprob (int rows, int columns, the doubles row by
+		row), the 12 compiled tables of PHMM.tables() (int length, doubles),
+		since version 2 the calibration (int number of lengths, 0 -> not
+		calibrated, then Calibration.values(k) of every length)
+	Loading maps the file into memory and reads the arrays in bulk. Files of
+	version 1 are still read (without calibration).*/
+final class ModelFile {
+
+	//"PHMM" and version of the format
+	static final int MAGIC = 0x50484D4D, VERSION = 2;
+	//size of the header in bytes
+	private static final int HEADER = 4 + 4 + 8 + 8;
+
+
+
+	/** Saves a model into a file.
+		@param model Trained PHMM
+		@param path Path to the file (is overwritten)*/
+	static void save(PHMM model, String path) throws IOException {
+		double[][] tables = model.tables();
+		long size = 4 + 4 + model.isMatch.length + matrixSize(model.eprobmat)
+			+ matrixSize(model.eprobins) + matrixSize(model.tprob);
+		for (double[] t : tables)
+			size += 4 + 8L * t.length;
+		Calibration c = model.calibration;
+		size += 4 + ((c == null) ? 0 : 8L * Calibration.VALUES * c.size());
+		if (size > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("The model is too big for a "
+				+"model file ("+size+" bytes)");
+
+		ByteBuffer data = ByteBuffer.allocate((int) size);
+		data.putInt(model.matnr);
+		data.putInt(model.isMatch.length);
+		for (boolean b : model.isMatch)
+			data.put((byte) (b ? 1 : 0));
+		putMatrix(data, model.eprobmat);
+		putMatrix(data, model.eprobins);
+		putMatrix(data, model.tprob);
+		for (double[] t : tables) {
+			data.putInt(t.length);
+			data.asDoubleBuffer().put(t);
+			data.position(data.position() + 8 * t.length);
+		}
+		data.putInt((c == null) ? 0 : c.size());
+		for (int k = 0; c != null && k < c.size(); k++)
+			for (double v : c.values(k))
+				data.putDouble(v);
+		data.flip();
+
+		CRC32 crc = new CRC32();
+		crc.update(data.duplicate());
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		header.putInt(MAGIC).putInt(VERSION).putLong(size)
+			.putLong(crc.getValue()).flip();
+
+		try (FileChannel ch = FileChannel.open(Paths.get(path),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (header.hasRemaining())
+				ch.write(header);
+			while (data.hasRemaining())
+				ch.write(data);
+		}
+	}
+
+
+
+	/** Loads a model out of a file.
+		@param path Path to the file
+		@return The saved model
+		@throws IOException If the file is no model file, has another version
+			or is damaged (wrong checksum)*/
+	static PHMM load(String path) throws IOException {
+		try (FileChannel ch = FileChannel.open(Paths.get(path),
+				StandardOpenOption.READ)) {
+			long fsize = ch.size();
+			if (fsize < HEADER)
+				throw new IOException(path+" is no model file (too short)");
+			MappedByteBuffer buf =
+				ch.map(FileChannel.MapMode.READ_ONLY, 0, fsize);
+
+			if (buf.getInt() != MAGIC)
+				throw new IOException(path+" is no model file");
+			int version = buf.getInt();
+			if (version != VERSION && version != 1)
+				throw new IOException("The model file "+path+" has the "
+					+"version "+version+" and not 1 to "+VERSION);
+			long size = buf.getLong();
+			long checksum = buf.getLong();
+			if (size != fsize - HEADER)
+				throw new IOException("The model file "+path+" is damaged "
+					+"(length "+(fsize - HEADER)+" instead of "+size+")");
+
+			ByteBuffer data = buf.slice();
+			CRC32 crc = new CRC32();
+			crc.update(data.duplicate());
+			if (crc.getValue() != checksum)
+				throw new IOException("The model file "+path+" is damaged "
+					+"(wrong checksum)");
+
+			try {
+				int matnr = data.getInt();
+				boolean[] isMatch = new boolean[data.getInt()];
+				for (int i = 0; i < isMatch.length; i++)
+					isMatch[i] = data.get() != 0;
+				double[][] eprobmat = getMatrix(data);
+				double[][] eprobins = getMatrix(data);
+				double[][] tprob = getMatrix(data);
+				double[][] tables = new double[12][];
+				for (int k = 0; k < tables.length; k++) {
+					tables[k] = new double[data.getInt()];
+					getDoubles(data, tables[k]);
+				}
+
+				Calibration calibration = null;
+				if (version >= 2) {
+					int n = data.getInt();
+					if (n < 0)
+						throw new IOException("The model file "+path+" is "
+							+"damaged (calibration)");
+					if (n > 0) {
+						int[] lengths = new int[n];
+						double[][] v = new double[Calibration.VALUES - 1][n];
+						for (int k = 0; k < n; k++) {
+							lengths[k] = (int) data.getDouble();
+							for (int x = 0; x < v.length; x++)
+								v[x][k] = data.getDouble();
+						}
+						calibration = new Calibration(lengths, v[0], v[1],
+							v[2], v[3]);
+					}
+				}
+				if (data.hasRemaining())
+					throw new IOException("The model file "+path+" is "
+						+"inconsistent (data behind the model)");
+
+				//the sizes have to fit to matnr (the kernels do not check)
+				int cols = matnr + 1;
+				boolean ok = eprobmat.length == matnr
+					&& eprobins.length == cols && tprob.length == cols;
+				for (int k = 0; k < tables.length; k++)
+					ok &= tables[k].length == ((k < 9) ? cols : 4 * cols);
+				if (!ok)
+					throw new IOException("The model file "+path+" is "
+						+"inconsistent");
+
+				return new PHMM(isMatch, matnr, eprobmat, eprobins, tprob,
+					tables, calibration);
+			} catch (BufferUnderflowException | IllegalArgumentException
+					| NegativeArraySizeException e) {
+				throw new IOException("The model file "+path+" is damaged", e);
+			}
+		}
+	}
+
+
+
+	/** Size of a matrix in the file.*/
+	private static long matrixSize(double[][] m) {
+		return 8 + 8L * m.length * ((m.length > 0) ? m[0].length : 0);
+	}
+
+
+
+	/** Writes a (rectangular) matrix.*/
+	private static void putMatrix(ByteBuffer b, double[][] m) {
+		int w = (m.length > 0) ? m[0].length : 0;
+		b.putInt(m.length);
+		b.putInt(w);
+		for (double[] row : m) {
+			if (row.length != w)
+				throw new IllegalArgumentException("The matrix is not "
+					+"rectangular");
+			b.asDoubleBuffer().put(row);
+			b.position(b.position() + 8 * w);
+		}
+	}
+
+
+
+	/** Reads a matrix.*/
+	private static double[][] getMatrix(ByteBuffer b) {
+		double[][] m = new double[b.getInt()][b.getInt()];
+		for (double[] row : m)
+			getDoubles(b, row);
+		return m;
+	}
+
+
+
+	/** Reads doubles in bulk.*/
+	private static void getDoubles(ByteBuffer b, double[] dst) {
+		b.asDoubleBuffer().get(dst);
+		b.position(b.position() + 8 * dst.length);
+	}
+
+}
@@ -0,0 +1,138 @@
+/** Immutable trained profile hidden markov model (PHMM). It holds the
+	structure (matchpositions) and the estimated emission- and transition-
+	probabilities of a training with RNASequenceTrain.train(). All arrays are
+	copied on construction and must never be modified afterwards, so one model
+	can be shared by any number of threads.*/
+final class PHMM {
+
+	//boolean array for matchingpositions (columns of the MSA)
+	final boolean[] isMatch;
+	//number of matchingpositions
+	final int matnr;
+
+	//estimated emission probabilities at match- & insertpositions [pos][base]
+	final double[][] eprobmat, eprobins;
+	//estimated transition probabilities [pos][ST]
+	final double[][] tprob;
+
+
+	//compiled model: logarithmized scores as flat arrays, index j is the
+	//match node j (1..matnr) of the viterbi matrices, so the kernels need no
+	//Math.log(..), no lookups of the ST rows & no allocations per cell
+	//transitions into M_j, D_j (from node j-1) and into I_j (from node j)
+	final double[] tMM, tIM, tDM, tMD, tID, tDD, tMI, tII, tDI;
+	//emission scores per base [base * (matnr+1) + j], at match (msc) and
+	//insertpositions (isc), so one row of the viterbi matrix reads one block
+	final double[] msc, isc;
+	//log-odds of the match emissions against the uniform background
+	//(log(e / 0.25)), same layout as msc, for the MSV filter
+	final double[] mlod;
+
+	//E-values of the viterbi scores (null -> not calibrated)
+	final Calibration calibration;
+
+
+
+	/** Creates a model from the results of a training.
+		@param isMatch Matchpositions of the MSA
+		@param matnr Number of matchpositions
+		@param eprobmat Emissionprobabilities at matchpositions
+		@param eprobins Emissionprobabilities at insertpositions
+		@param tprob Transitionprobabilities*/
+	PHMM(boolean[] isMatch, int matnr, double[][] eprobmat,
+			double[][] eprobins, double[][] tprob) {
+		this.isMatch = isMatch.clone();
+		this.matnr = matnr;
+		this.eprobmat = copy(eprobmat);
+		this.eprobins = copy(eprobins);
+		this.tprob = copy(tprob);
+		this.calibration = null;
+
+		//compile the model
+		int cols = matnr + 1;
+		tMM = new double[cols]; tIM = new double[cols]; tDM = new double[cols];
+		tMD = new double[cols]; tID = new double[cols]; tDD = new double[cols];
+		tMI = new double[cols]; tII = new double[cols]; tDI = new double[cols];
+		msc = new double[4 * cols];
+		isc = new double[4 * cols];
+		mlod = new double[4 * cols];
+
+		for (int j = 0; j < cols; j++) {
+			//transitions into node j (not defined for j = 0)
+			if (j > 0) {
+				double[] t = this.tprob[j-1];
+				tMM[j] = Math.log(t[RNASequenceTrain.ST.MTM.row]);
+				tIM[j] = Math.log(t[RNASequenceTrain.ST.ITM.row]);
+				tDM[j] = Math.log(t[RNASequenceTrain.ST.DTM.row]);
+				tMD[j] = Math.log(t[RNASequenceTrain.ST.MTD.row]);
+				tID[j] = Math.log(t[RNASequenceTrain.ST.ITD.row]);
+				tDD[j] = Math.log(t[RNASequenceTrain.ST.DTD.row]);
+			}
+			//transitions into the insertstate of node j
+			double[] t = this.tprob[j];
+			tMI[j] = Math.log(t[RNASequenceTrain.ST.MTI.row]);
+			tII[j] = Math.log(t[RNASequenceTrain.ST.ITI.row]);
+			tDI[j] = Math.log(t[RNASequenceTrain.ST.DTI.row]);
+
+			for (int x = 0; x < 4; x++) {
+				if (j > 0) {
+					msc[x * cols + j] = Math.log(this.eprobmat[j-1][x]);
+					mlod[x * cols + j] = Math.log(this.eprobmat[j-1][x] / 0.25);
+				}
+				isc[x * cols + j] = Math.log(this.eprobins[j][x]);
+			}
+		}
+	}
+
+
+
+	/** Creates a model out of the saved arrays and compiled tables (see
+		ModelFile), nothing is calculated again. The arrays are taken over
+		and must not be used by the caller afterwards.
+		@param calibration Calibration of the scores (null -> none)*/
+	PHMM(boolean[] isMatch, int matnr, double[][] eprobmat,
+			double[][] eprobins, double[][] tprob, double[][] tables,
+			Calibration calibration) {
+		if (tables.length != 12)
+			throw new IllegalArgumentException("There must be 12 compiled "
+				+"tables and not "+tables.length);
+		this.isMatch = isMatch;
+		this.matnr = matnr;
+		this.eprobmat = eprobmat;
+		this.eprobins = eprobins;
+		this.tprob = tprob;
+		tMM = tables[0]; tIM = tables[1]; tDM = tables[2];
+		tMD = tables[3]; tID = tables[4]; tDD = tables[5];
+		tMI = tables[6]; tII = tables[7]; tDI = tables[8];
+		msc = tables[9]; isc = tables[10]; mlod = tables[11];
+		this.calibration = calibration;
+	}
+
+
+
+	/** The same model with the given calibration of the scores (the arrays
+		are shared, the model stays immutable).*/
+	PHMM calibrated(Calibration calibration) {
+		return new PHMM(isMatch, matnr, eprobmat, eprobins, tprob, tables(),
+			calibration);
+	}
+
+
+
+	/** Compiled tables in the order of the constructor above.*/
+	double[][] tables() {
+		return new double[][] {tMM, tIM, tDM, tMD, tID, tDD, tMI, tII, tDI,
+			msc, isc, mlod};
+	}
+
+
+
+	/** Deep copy of a matrix.*/
+	private static double[][] copy(double[][] m) {
+		double[][] ret = new double[m.length][];
+		for (int i = 0; i < m.length; i++)
+			ret[i] = m[i].clone();
+		return ret;
+	}
+
+}
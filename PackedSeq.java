@@ -0,0 +1,217 @@
+import java.util.*;
+
+/** Packed (immutable) nucleotide sequence: 2 bits per base (A, C, G, U ->
+	0..3, 32 bases per long), so the codes can be used directly as index of
+	the emission tables (see PHMM.msc). All other characters (gaps '-' of a
+	MSA, ambiguity codes like N, R, Y, ...) are marked in a side mask (1 bit
+	per position, only if there are any): gaps have the code 0 there, the
+	other ones the code 1 and their character is saved in a sparse list.
+	A testsequence needs 1/8 of the memory of a UTF-16 String (1/4 of a
+	Latin-1 String), a row of a MSA 3/8 (gaps).
+	Lower case bases are saved as upper case ones and the gaps '.', '_' & '~'
+	of the Stockholm format as '-'.*/
+final class PackedSeq {
+
+	//codes of the characters: A, C, G, U -> 0..3, gaps -> GAP, else -1
+	private static final byte GAP = 4;
+	private static final byte[] code = new byte[128];
+	static {
+		Arrays.fill(code, (byte) -1);
+		code['A'] = 0; code['C'] = 1; code['G'] = 2; code['U'] = 3;
+		code['a'] = 0; code['c'] = 1; code['g'] = 2; code['u'] = 3;
+		code['-'] = GAP; code['.'] = GAP; code['_'] = GAP; code['~'] = GAP;
+	}
+	private static final char[] BASES = {'A', 'C', 'G', 'U'};
+
+	//2 bits per position, bits 2*(i%32) of bits[i/32]
+	private final long[] bits;
+	//side mask of the characters that are no bases (null -> there are none)
+	private final long[] mask;
+	//positions (ascending) & characters of the other characters
+	private final int[] xpos;
+	private final char[] xchr;
+	//length of the sequence
+	private final int len;
+
+
+
+	private PackedSeq(long[] bits, long[] mask, int[] xpos, char[] xchr,
+			int len) {
+		this.bits = bits;
+		this.mask = mask;
+		this.xpos = xpos;
+		this.xchr = xchr;
+		this.len = len;
+	}
+
+
+
+	/** Packs a sequence.
+		@param s Sequence (bases, gaps & other characters)
+		@return The packed sequence*/
+	static PackedSeq of(CharSequence s) {
+		int n = s.length();
+		Packer p = new Packer(n);
+		for (int i = 0; i < n; i++)
+			p.put(i, s.charAt(i));
+		return p.done();
+	}
+
+
+
+	/** Packs a sequence out of ASCII bytes (see FastaReader).
+		@param a Array with the characters
+		@param len Number of characters in a
+		@return The packed sequence*/
+	static PackedSeq of(byte[] a, int len) {
+		Packer p = new Packer(len);
+		for (int i = 0; i < len; i++)
+			p.put(i, (char) (a[i] & 0xff));
+		return p.done();
+	}
+
+
+
+	/** Length of the sequence.*/
+	int length() {
+		return len;
+	}
+
+
+
+	/** Code of the base at position i (0..3) or -1, if there is no base.*/
+	int code(int i) {
+		if (mask != null && (mask[i >>> 6] & (1L << i)) != 0)
+			return -1;
+		return (int) (bits[i >>> 5] >>> ((i & 31) << 1)) & 3;
+	}
+
+
+
+	/** True, if there is a gap at position i.*/
+	boolean isGap(int i) {
+		return mask != null && (mask[i >>> 6] & (1L << i)) != 0
+			&& ((bits[i >>> 5] >>> ((i & 31) << 1)) & 3) == 0;
+	}
+
+
+
+	/** Character at position i.*/
+	char charAt(int i) {
+		if (mask == null || (mask[i >>> 6] & (1L << i)) == 0)
+			return BASES[(int) (bits[i >>> 5] >>> ((i & 31) << 1)) & 3];
+		if (((bits[i >>> 5] >>> ((i & 31) << 1)) & 3) == 0)
+			return '-';
+		return xchr[Arrays.binarySearch(xpos, i)];
+	}
+
+
+
+	/** Unpacks the codes of the bases (for the viterbi kernels).
+		@param dst Array for the codes (at least length() long)
+		@throws IllegalArgumentException If there is a gap or another
+			character*/
+	void codes(byte[] dst) {
+		if (mask != null)
+			for (int k = 0; k < mask.length; k++)
+				if (mask[k] != 0) {
+					int i = 64 * k + Long.numberOfTrailingZeros(mask[k]);
+					throw new IllegalArgumentException("The character "
+						+charAt(i)+" at position "+i+" of the testsequence is "
+						+"not valid");
+				}
+
+		for (int k = 0, i = 0; i < len; k++) {
+			long w = bits[k];
+			for (int e = Math.min(len, i + 32); i < e; i++, w >>>= 2)
+				dst[i] = (byte) (w & 3);
+		}
+	}
+
+
+
+	/** The sequence without gaps.*/
+	PackedSeq withoutGaps() {
+		if (mask == null)
+			return this;
+		Packer p = new Packer(len);
+		int n = 0;
+		for (int i = 0; i < len; i++)
+			if (!isGap(i))
+				p.put(n++, charAt(i));
+		return p.done(n);
+	}
+
+
+
+	/** The sequence as String.*/
+	public String toString() {
+		char[] c = new char[len];
+		for (int i = 0; i < len; i++)
+			c[i] = charAt(i);
+		return new String(c);
+	}
+
+
+
+	/** Collects the packed sequence.*/
+	private static final class Packer {
+
+		private final long[] bits;
+		private final int len;
+		private long[] mask;
+		private int[] xpos = new int[0];
+		private char[] xchr = new char[0];
+		private int xn;
+
+		Packer(int len) {
+			this.len = len;
+			bits = new long[(len + 31) >>> 5];
+		}
+
+		/** Puts character c to position i (ascending positions).*/
+		void put(int i, char c) {
+			byte b = (c < 128) ? code[c] : -1;
+			if (b >= 0 && b < GAP) {
+				bits[i >>> 5] |= (long) b << ((i & 31) << 1);
+				return;
+			}
+
+			if (mask == null)
+				mask = new long[(bits.length + 1) >>> 1];
+			mask[i >>> 6] |= 1L << i;
+			if (b == GAP)
+				return;		//code 0
+
+			bits[i >>> 5] |= 1L << ((i & 31) << 1);
+			if (xn == xpos.length) {
+				xpos = Arrays.copyOf(xpos, Math.max(4, 2 * xn));
+				xchr = Arrays.copyOf(xchr, xpos.length);
+			}
+			xpos[xn] = i;
+			xchr[xn++] = Character.toUpperCase(c);
+		}
+
+		PackedSeq done() {
+			return done(len);
+		}
+
+		/** The packed sequence with the first n positions.*/
+		PackedSeq done(int n) {
+			int words = (n + 31) >>> 5;
+			long[] m = null;
+			if (mask != null) {
+				m = Arrays.copyOf(mask, (words + 1) >>> 1);
+				boolean any = false;
+				for (long w : m)
+					any |= (w != 0);
+				if (!any)
+					m = null;
+			}
+			return new PackedSeq(
+				(words == bits.length) ? bits : Arrays.copyOf(bits, words),
+				m, Arrays.copyOf(xpos, xn), Arrays.copyOf(xchr, xn), n);
+		}
+	}
+
+}
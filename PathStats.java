@@ -0,0 +1,169 @@
+/** Statistics of a viterbi path, collected state by state during the
+	traceback (see StatePath) without any allocation: number of the states,
+	number & longest length of their runs (a run of M is a chain of
+	matchhits, runs of I & D are insertions & deletions) and the score of the
+	path. The runs do not depend on the direction, so the backwards traceback
+	counts the same as the path read from the front. Out of these values the
+	classifiers decide rRNA / Non-rRNA, e.g. the matchhit-method:
+	Q = hits / length of the sequence, L = hits / chains (average length of
+	the chains). An object is reused for every path of a worker.*/
+final class PathStats {
+
+	/** Decision rRNA / Non-rRNA out of the statistics of the viterbi path.*/
+	interface Classifier {
+		/** True, if the sequence of the path is rRNA.*/
+		boolean isrRNA(PathStats s);
+	}
+
+	//per state (code of StatePath): number, runs & longest run
+	private final int[] count = new int[3], runs = new int[3],
+		longest = new int[3];
+	//state & length of the actual run
+	private int last, run;
+	//length of the sequence & number of match nodes of the model
+	private int residues, nodes;
+	//viterbi score of the path
+	private double score;
+
+
+
+	/** Starts the statistics of a new path.
+		@param residues Length of the sequence
+		@param nodes Number of match nodes of the model*/
+	void reset(int residues, int nodes) {
+		java.util.Arrays.fill(count, 0);
+		java.util.Arrays.fill(runs, 0);
+		java.util.Arrays.fill(longest, 0);
+		last = -1;
+		run = 0;
+		this.residues = residues;
+		this.nodes = nodes;
+		score = Double.NaN;
+	}
+
+
+
+	/** Adds n times the same state (next ones of the traceback).
+		@param state Code of the state (see StatePath)
+		@param n Number*/
+	void add(int state, int n) {
+		if (n == 0)
+			return;
+		count[state] += n;
+		if (state == last)
+			run += n;
+		else {
+			runs[state]++;
+			last = state;
+			run = n;
+		}
+		if (longest[state] < run)
+			longest[state] = run;
+	}
+
+
+
+	/** Sets the viterbi score of the path.*/
+	void setScore(double score) {
+		this.score = score;
+	}
+
+
+
+	/** Number of the states of the path with the given code.*/
+	int count(int state) {
+		return count[state];
+	}
+
+
+
+	/** Number of the runs of the given state (M: chains of matchhits).*/
+	int runs(int state) {
+		return runs[state];
+	}
+
+
+
+	/** Length of the longest run of the given state.*/
+	int longestRun(int state) {
+		return longest[state];
+	}
+
+
+
+	/** Length of the sequence.*/
+	int residues() {
+		return residues;
+	}
+
+
+
+	/** Number of match nodes of the model.*/
+	int nodes() {
+		return nodes;
+	}
+
+
+
+	/** Viterbi score of the path (NaN, if not set).*/
+	double score() {
+		return score;
+	}
+
+
+
+	/** Q of the matchhit-method: matchhits per residue.*/
+	double q() {
+		return (double) count[StatePath.M] / residues;
+	}
+
+
+
+	/** L of the matchhit-method: average length of the chains of matchhits
+		(NaN without matchhits).*/
+	double l() {
+		return (double) count[StatePath.M] / runs[StatePath.M];
+	}
+
+
+
+	/** Fraction of the match nodes (columns of the model) that are emitted
+		by the sequence (every node has at most one matchhit).*/
+	double coverage() {
+		return (double) count[StatePath.M] / nodes;
+	}
+
+
+
+	/** Log-odds of the score against the uniform background of the
+		residues.*/
+	double logOdds() {
+		return score + residues * Math.log(4);
+	}
+
+
+
+	/** The matchhit-method (see protocol): rRNA, if Q >= qthr & L >= lthr.*/
+	static boolean matchhit(PathStats s, double qthr, double lthr) {
+		return s.q() >= qthr && s.l() >= lthr;
+	}
+
+
+
+	/** Classifier of the matchhit-method.
+		@param qthr Threshold for Q
+		@param lthr Threshold for L*/
+	static Classifier matchhit(double qthr, double lthr) {
+		return s -> matchhit(s, qthr, lthr);
+	}
+
+
+
+	/** Classifier of the score: rRNA, if the log-odds of the viterbi score
+		(see logOdds) is at least the threshold.
+		@param threshold Minimal log-odds*/
+	static Classifier score(double threshold) {
+		return s -> s.logOdds() >= threshold;
+	}
+
+}
@@ -1,5 +1,8 @@
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.IntStream;
 import java.io.*;
+import java.net.InetAddress;
 
 /** This class implements a Profile Hidden Markov Modell (PHMM) for detection of
 	ribosomal RNA-Sequences (rRNA). It is trained with a MSA of trainingseq. and
@@ -8,7 +11,7 @@ public class RNASequenceTrain {
 
 	
 	//enumeration for the states
-	private enum State {	
+	enum State {	
 		M(0), I(1), D(2), B(3), E(4);		//Match, Insert, Delete, Begin, End
 		public int row;
 		State (int row) {this.row = row;}
@@ -16,7 +19,7 @@ public class RNASequenceTrain {
 
 
 	//enumeration for the state transitions
-	private enum ST {
+	enum ST {
 		MTM(0), MTI(1), MTD(2), ITM(3), ITI(4),		//Match to Match,
 			ITD(5), DTM(6), DTI(7), DTD(8);			//Match to Insert, ...
 	 	public int row; 									
@@ -108,14 +111,15 @@ public class RNASequenceTrain {
 
 	//String array for sequence headers
 	private static String[] header;
-	//String array for sequences
-	private static String[] seq;
+	//packed array for the aligned sequences (see PackedSeq)
+	private static PackedSeq[] seq;
 	//Variable for number of sequences and length of sequence (rows & columns of
 	//Matrix)
 	private static int seqnr, seqlen;
 	
-	//boolean array for matchingpositions
+	//boolean array for matchingpositions & number of gaps in each column
 	private static boolean[] isMatch;
+	private static int[] gaps;
 	//number of matchingpositions
 	private static int matnr;
 	
@@ -133,100 +137,330 @@ public class RNASequenceTrain {
 	
 	//global pseudocount
 	private static int pseudo = 1;
-		
 	
-	//matrices for dynamic programming of viterbi variables
-	private static double[][] vM, vI, vD;
-	//matrices for backtracking
-	private static dir[][] btM, btI, btD;
-	//constants for directions for backtracking
-	private enum dir {
-		UPLEFT, UP, LEFT, RIGHT;
-	}
+	//threads for the counting of the training
+	private static ForkJoinPool trainPool = ForkJoinPool.commonPool();
+		
 	
-	//String for the sequence that shall be tested (viterbi)
-	private static String testseq;
-	//String arrays for testsequences and their names (headers)
-	private static String[] tester;
-	private static String[] testerheader;
-	//number of testsequences
-	private static int testernr;
+	//the trained model (immutable, shared by all threads)
+	private static PHMM model;
+	//counts of the training (sufficient statistics for updates)
+	private static CountStore counts;
 	
 	//threshold for logarithmic score
 	private static double threshold;
 	
+	//number of testsequences that are scored together (in parallel)
+	private static final int BATCHSIZE = 1024;
+	
+	//Baum-Welch stops, if the log-posterior improves less (relative)
+	private static final double BWTOLERANCE = 1e-5;
+	
 	
 	
 	public static void main(String[] args) throws IllegalArgumentException, 
 		IOException {
 		
-		if (args.length < 1) {
+		//optional parameters, everything else are paths
+		int threads = Runtime.getRuntime().availableProcessors();
+		long maxCells = -1;		//-1 -> depending on the heap (see below)
+		boolean scoreOnly = false;
+		String kernel = "scalar";
+		boolean pipeline = false;
+		boolean forward = false;	//forward scores & posterior decoding
+		int band = -1;			//-1 -> not banded, 0 -> automatic width
+		String modelIn = null, modelOut = null;		//model files
+		String countsIn = null, countsOut = null;	//count stores
+		String like = null;		//matchpositions out of this count store
+		boolean stream = false;		//training in one pass over the MSA
+		String bwPath = null;		//sequences for Baum-Welch (null -> none)
+		int iterations = 10;		//maximal iterations of Baum-Welch
+		boolean stats = false;		//instrumentation & summary at the end
+		boolean scan = false;		//local scanning of long sequences
+		double scanThreshold = Double.NaN;	//NaN -> see ContigScanner
+		double scoreThreshold = Double.NaN;	//NaN -> matchhit-method
+		boolean sweep = false;		//grid of the matchhit thresholds
+		String qgrid = ThresholdSweep.QGRID, lgrid = ThresholdSweep.LGRID;
+		String labels = null;		//labels of the testsequences for sweep
+		int calibrate = 0;		//null sequences per length (0 -> none)
+		String calLengths = null;	//lengths of the null set (null -> default)
+		double dbsize = 1;		//number of sequences for the E-values
+		int serve = -1;			//port of the ScoringServer (-1 -> none)
+		int maxRequests = ScoringServer.REQUESTS;	//requests scored at once
+		ArrayList<String> library = new ArrayList<String>();	//saved models
+		ArrayList<String> addMSA = new ArrayList<String>();
+		ArrayList<String> mergeCounts = new ArrayList<String>();
+		ArrayList<String> paths = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--threads") && i + 1 < args.length)
+				threads = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--maxcells") && i + 1 < args.length)
+				maxCells = Long.parseLong(args[++i]);
+			else if (args[i].equals("--scoreonly"))
+				scoreOnly = true;
+			else if (args[i].equals("--kernel") && i + 1 < args.length)
+				kernel = args[++i];
+			else if (args[i].equals("--pipeline"))
+				pipeline = true;
+			else if (args[i].equals("--forward"))
+				forward = true;
+			else if (args[i].equals("--band") && i + 1 < args.length)
+				band = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--model") && i + 1 < args.length)
+				modelIn = args[++i];
+			else if (args[i].equals("--savemodel") && i + 1 < args.length)
+				modelOut = args[++i];
+			else if (args[i].equals("--counts") && i + 1 < args.length)
+				countsIn = args[++i];
+			else if (args[i].equals("--savecounts") && i + 1 < args.length)
+				countsOut = args[++i];
+			else if (args[i].equals("--addmsa") && i + 1 < args.length)
+				addMSA.add(args[++i]);
+			else if (args[i].equals("--mergecounts") && i + 1 < args.length)
+				mergeCounts.add(args[++i]);
+			else if (args[i].equals("--like") && i + 1 < args.length)
+				like = args[++i];
+			else if (args[i].equals("--stream"))
+				stream = true;
+			else if (args[i].equals("--baumwelch") && i + 1 < args.length)
+				bwPath = args[++i];
+			else if (args[i].equals("--iterations") && i + 1 < args.length)
+				iterations = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--stats"))
+				stats = true;
+			else if (args[i].equals("--scan"))
+				scan = true;
+			else if (args[i].equals("--scanthreshold") && i + 1 < args.length)
+				scanThreshold = Double.parseDouble(args[++i]);
+			else if (args[i].equals("--scorethreshold") && i + 1 < args.length)
+				scoreThreshold = Double.parseDouble(args[++i]);
+			else if (args[i].equals("--sweep"))
+				sweep = true;
+			else if (args[i].equals("--qgrid") && i + 1 < args.length)
+				qgrid = args[++i];
+			else if (args[i].equals("--lgrid") && i + 1 < args.length)
+				lgrid = args[++i];
+			else if (args[i].equals("--labels") && i + 1 < args.length)
+				labels = args[++i];
+			else if (args[i].equals("--pseudo") && i + 1 < args.length)
+				pseudo = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--calibrate") && i + 1 < args.length)
+				calibrate = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--callengths") && i + 1 < args.length)
+				calLengths = args[++i];
+			else if (args[i].equals("--dbsize") && i + 1 < args.length)
+				dbsize = Double.parseDouble(args[++i]);
+			else if (args[i].equals("--library") && i + 1 < args.length)
+				library.add(args[++i]);
+			else if (args[i].equals("--serve") && i + 1 < args.length)
+				serve = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--maxrequests") && i + 1 < args.length)
+				maxRequests = Integer.parseInt(args[++i]);
+			else
+				paths.add(args[i]);
+		}
+		
+		boolean noMSA = (modelIn != null || countsIn != null
+			|| !library.isEmpty());
+		if (paths.size() < (noMSA ? 0 : 1)) {
 			System.out.println("The command line parameters must be at least "
 				+"the path to the file with the MSA for the training of the HMM"
-				+" and optional a path to a file with testsequences!");
+				+" (or --model file / --counts file) and optional a path to a "
+				+"file with testsequences!"
+				+" (Options: --threads n, --maxcells n, --scoreonly,"
+				+" --kernel scalar|striped|interseq, --pipeline, --forward,"
+				+" --band w, --model file, --savemodel file, --counts file,"
+				+" --savecounts file, --addmsa file, --mergecounts file,"
+				+" --like file, --stream, --baumwelch file, --iterations n,"
+				+" --stats, --scan, --scanthreshold x, --library file,"
+				+" --scorethreshold x, --sweep, --qgrid from:to:step,"
+				+" --lgrid from:to:step, --labels file, --pseudo n,"
+				+" --calibrate n, --callengths l1,l2,..., --dbsize z,"
+				+" --serve port, --maxrequests n)");
 			System.exit(1);
 		}
+		if (modelIn != null && (countsIn != null || countsOut != null
+				|| !addMSA.isEmpty() || !mergeCounts.isEmpty()))
+			throw new IllegalArgumentException("A saved model (--model) has "
+				+"no counts, it can not be updated");
+		if (like != null && noMSA)
+			throw new IllegalArgumentException("--like needs a MSA");
+		if (forward && pipeline)
+			throw new IllegalArgumentException("The filter pipeline is only "
+				+"for the Viterbi-Algorithm, not for --forward");
+		if (scan && (forward || pipeline || scoreOnly))
+			throw new IllegalArgumentException("--scan has its own local "
+				+"Viterbi-Algorithm, not --forward, --pipeline or --scoreonly");
+		if (!Double.isNaN(scoreThreshold) && (forward || pipeline || scoreOnly
+				|| scan || !library.isEmpty()))
+			throw new IllegalArgumentException("--scorethreshold classifies "
+				+"the Viterbi paths, not with --forward, --pipeline, "
+				+"--scoreonly, --scan or --library");
+		if (sweep && (forward || pipeline || scoreOnly || scan
+				|| !library.isEmpty() || !Double.isNaN(scoreThreshold)))
+			throw new IllegalArgumentException("--sweep varies the thresholds "
+				+"of the matchhit-method, not with --forward, --pipeline, "
+				+"--scoreonly, --scan, --library or --scorethreshold");
+		if (labels != null && !sweep)
+			throw new IllegalArgumentException("--labels is only for --sweep");
+		if (!(dbsize > 0))
+			throw new IllegalArgumentException("The size of the database "
+				+"must be positive and not "+dbsize);
+		if (pseudo < 0)
+			throw new IllegalArgumentException("The pseudocount must not be "
+				+"negative and not "+pseudo);
+		if (!library.isEmpty() && (modelIn != null || countsIn != null
+				|| modelOut != null || countsOut != null || !addMSA.isEmpty()
+				|| !mergeCounts.isEmpty() || like != null || bwPath != null
+				|| scan || forward || pipeline || scoreOnly || band >= 0
+				|| calibrate > 0 || paths.size() != 1))
+			throw new IllegalArgumentException("--library only scores the "
+				+"testsequences (one path) with the saved models, no training, "
+				+"--calibrate, --scan, --forward, --pipeline, --scoreonly or "
+				+"--band");
+		if (serve >= 0 && (scan || sweep || !library.isEmpty()
+				|| paths.size() != (noMSA ? 0 : 1)))
+			throw new IllegalArgumentException("--serve scores the sequences "
+				+"of the requests, no file with testsequences, --scan, --sweep "
+				+"or --library");
+		
+		//the summary is printed at every end (also after System.exit)
+		if (stats) {
+			Stats.enable();
+			Runtime.getRuntime().addShutdownHook(
+				new Thread(() -> System.err.print(Stats.summary())));
+		}
 		
+		long t = Stats.start();
+		if (!library.isEmpty()) {
+			scoreLibrary(library, paths.get(0), threads, maxCells);
+			return;
+		}
+		if (modelIn != null) {
+			//trained model out of the file instead of the training
+			model = ModelFile.load(modelIn);
+			Stats.stop(Stats.Stage.PARSE, t, 0, 0);
+			paths.add(0, modelIn);		//path of the testsequences stays 2nd
+		}
+		else if (like != null) {
+			//count the MSA with the matchpositions of another store (shard)
+			counts = CountStore.load(like).emptyCopy();
+			PackedSeq[] msa = readMSA(paths.get(0), new ArrayList<String>());
+			t = Stats.stop(Stats.Stage.PARSE, t, msa.length, 0);
+			counts.add(msa);
+			if (addMSA.isEmpty() && mergeCounts.isEmpty())
+				train(counts);
+			Stats.stop(Stats.Stage.TRAIN, t, msa.length, 0);
+		}
+		else if (countsIn != null) {
+			//estimate the model out of saved counts
+			counts = CountStore.load(countsIn);
+			t = Stats.stop(Stats.Stage.PARSE, t, 0, 0);
+			if (addMSA.isEmpty() && mergeCounts.isEmpty())
+				train(counts);
+			Stats.stop(Stats.Stage.TRAIN, t, 0, 0);
+			paths.add(0, countsIn);
+		}
+		else {
+			trainPool = new ForkJoinPool(threads);
+			try {
+				//Stockholm files are always streamed (reading & counting
+				//are one stage then)
+				if (stream || StockholmReader.isStockholm(paths.get(0))) {
+					trainStreaming(paths.get(0));
+					Stats.stop(Stats.Stage.TRAIN, t, counts.sequences(), 0);
+				}
+				else
+					trainFromFile(paths.get(0));
+			} finally {
+				trainPool.shutdown();
+			}
+		}
 		
+		//updates of the counts with new sequences / other stores
+		if (!addMSA.isEmpty() || !mergeCounts.isEmpty()) {
+			t = Stats.start();
+			for (String p : mergeCounts)
+				counts.merge(CountStore.load(p));
+			for (String p : addMSA)
+				counts.add(readMSA(p, new ArrayList<String>()));
+			if (counts.driftedColumns() > 0)
+				System.err.println("Warning: the matchpositions of "
+					+counts.driftedColumns()+" columns would be others with "
+					+"all sequences, a new training is recommended");
+			train(counts);
+			Stats.stop(Stats.Stage.TRAIN, t, 0, 0);
+		}
 		
-		String path = args[0];
-		String line = null;
-		ArrayList<String> array = new ArrayList<String>();
-		BufferedReader r = new BufferedReader(new FileReader(path));
-		
-		//read data from the file
-		while ( (line = r.readLine()) != null )
-			if (!line.startsWith(";")) //ignore comment lines
-				array.add(line);
-		
-		r.close();
-		
-		
-		//init arrays for headers and sequences
-		seqnr = array.size() / 2;
-		header = new String[seqnr];
-		seq = new String[seqnr];
+		//refinement of the model with unaligned sequences (the count store
+		//keeps the counts of the MSA)
+		if (bwPath != null) {
+			trainPool = new ForkJoinPool(threads);
+			try {
+				t = Stats.start();
+				baumWelch(bwPath, iterations);
+				Stats.stop(Stats.Stage.TRAIN, t, 0, 0);
+			} finally {
+				trainPool.shutdown();
+			}
+		}
 		
-		//split up the input into the right array
-		for (int i = 0; i < header.length; i++)
-			header[i] = array.get(2*i);
-		for (int i = 0; i < seq.length; i++)
-			seq[i] = array.get(2*i+1);
-			
+		//null set for the E-values, saved with the model
+		if (calibrate > 0) {
+			t = Stats.start();
+			int[] lengths = (calLengths == null)
+				? Calibration.defaultLengths(model.matnr)
+				: Arrays.stream(calLengths.split(",")).map(String::trim)
+					.mapToInt(Integer::parseInt).toArray();
+			ViterbiWorker.Kernel ck = (kernel.equalsIgnoreCase("striped")
+				&& ViterbiWorker.isVectorAvailable())
+				? ViterbiWorker.Kernel.STRIPED : ViterbiWorker.Kernel.SCALAR;
+			System.out.println("#Calibrating with "+calibrate+" random "
+				+"sequences per length...");
+			model = model.calibrated(Calibration.fit(model, lengths,
+				calibrate, 1, ck, threads));
+			System.out.print(model.calibration);
+			Stats.stop(Stats.Stage.TRAIN, t, 0, 0);
+		}
 		
-		//train the PHMM & print the emissionprobabilities for matchpositions
-		train();
+		if (countsOut != null)
+			counts.save(countsOut);
+		if (modelOut != null)
+			ModelFile.save(model, modelOut);
 		
-		if (args.length == 1) {
+		if (paths.size() == 1 && serve < 0) {
 			printMatchPositions();
 			System.exit(0);		//end here
-		}	
-		
-		
-		
+		}
 		
-		//else test sequences from path in args[1]
-		System.out.println("Starting to test...");
-		path = args[1];
-		line = null;
-		array = new ArrayList<String>();
-		r = new BufferedReader(new FileReader(path));
 		
-		while ( (line = r.readLine()) != null)
-			if (!line.startsWith(";"))
-				array.add(line);
 		
-		r.close();
 		
-		//init tester & testerheader
-		testernr = array.size() / 2;
-		tester = new String[testernr];
-		testerheader = new String[testernr];
+		//else test sequences from path in args[1], they are read batch by
+		//batch (streaming, so the size of the file does not matter)
+		//(or from the requests of the ScoringServer)
+		String path = null;
+		if (serve < 0) {
+			System.out.println("Starting to test...");
+			path = paths.get(1);
+		}
 		
-		for (int i = 0; i < testerheader.length; i++)
-			testerheader[i] = array.get(2*i);
-		for (int i = 0; i < tester.length; i++)
-			tester[i] = array.get(2*i+1);
+		//hits of the model inside long sequences (both strands)
+		if (scan) {
+			if (Double.isNaN(scanThreshold))
+				scanThreshold = ContigScanner.threshold(model,
+					ContigScanner.DEFAULT_P);
+			System.out.println("#Scanning with threshold "+scanThreshold);
+			System.out.println(ContigScanner.HEADER);
+			ContigScanner scanner = new ContigScanner(model, threads,
+				ContigScanner.CHUNK, scanThreshold);
+			try {
+				scanner.scan(path, System.out::println);
+			} finally {
+				scanner.shutdown();
+			}
+			return;
+		}
 		
 		
 		//now construct a threshold for accepting/denying the testsequences with
@@ -234,22 +468,336 @@ public class RNASequenceTrain {
 		//threshold = minimumThreshold(5, 0.9);
 		
 		
-		//test the testsequences and decide rRNA/Non-rRNA
-		System.out.println("Testingsequences:");
-		double temp;
-		for (String t : tester) {
-			testseq = t;
-			temp = processViterbi();			
+		//test the testsequences in parallel and decide rRNA/Non-rRNA
+		//(for matchhitThreshold), the output keeps the order of the input
+		if (serve < 0)
+			System.out.println(ThresholdSweep.RUN_MARKER);
+		if (maxCells < 0)	//full matrices may use half of the heap
+			maxCells = Runtime.getRuntime().maxMemory() 
+				/ (2 * threads * ViterbiWorker.BYTES_PER_CELL);
+		//SIMD kernels (score-only) only with the Vector API
+		ViterbiWorker.Kernel k;
+		try {
+			k = ViterbiWorker.Kernel.valueOf(kernel.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Unknown kernel "+kernel);
+		}
+		if (k != ViterbiWorker.Kernel.SCALAR 
+				&& !ViterbiWorker.isVectorAvailable()) {
+			System.err.println("The Vector API is not available (java "
+				+"--add-modules jdk.incubator.vector), using the scalar kernel");
+			k = ViterbiWorker.Kernel.SCALAR;
+		}
+		
+		BatchScorer scorer = 
+			new BatchScorer(model, threads, maxCells, k, 0.8, 3);
+		if (band >= 0)
+			scorer.setBand(band);
+		scorer.setScoreOnly(scoreOnly);
+		scorer.setForward(forward);
+		if (!Double.isNaN(scoreThreshold))
+			scorer.setClassifier(PathStats.score(scoreThreshold));
+		FilterPipeline filters = null;
+		if (pipeline) {
+			int nulls = FilterPipeline.DEFAULT_NULLS;
+			System.out.println("#Calibrating the filters with "+nulls
+				+" random sequences per length...");
+			filters = new FilterPipeline(model, FilterPipeline.DEFAULT_PMSV,
+				FilterPipeline.DEFAULT_PVIT, 0.8, 3, nulls, k, threads);
+			scorer.setPipeline(filters);
+		}
+		if (sweep) {
+			try {
+				sweep(scorer, path, ThresholdSweep.grid(qgrid),
+					ThresholdSweep.grid(lgrid), labels, threads);
+			} finally {
+				scorer.shutdown();
+			}
+			return;
+		}
+		Calibration cal = forward ? null : model.calibration;
+		if (serve >= 0) {
+			//the server threads keep the program alive, the scorer is
+			//stopped with them at the end
+			ScoringServer server = new ScoringServer(scorer, cal, dbsize,
+				scoreOnly, serve, maxRequests);
+			server.warmup(3);
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				server.stop();
+				scorer.shutdown();
+			}));
+			server.start();
+			System.out.println("#Serving on http://"
+				+InetAddress.getLoopbackAddress().getHostAddress()+":"
+				+server.port()+" ("+(server.isVirtual() ? "virtual threads"
+				: "platform threads")+", at most "+maxRequests+" requests at once)");
+			return;
+		}
+		PackedSeq[] tester = new PackedSeq[BATCHSIZE];
+		double[] score = new double[BATCHSIZE];
+		boolean[] isrRNA = new boolean[BATCHSIZE];
+		try (FastaReader r = new FastaReader(path)) {
+			int n;
+			t = Stats.start();
+			while ((n = r.next(tester, BATCHSIZE)) > 0) {
+				Stats.stop(Stats.Stage.PARSE, t, n, 0);
+				scorer.score(tester, 0, n, score, isrRNA);
 				
-			//for matchhitThreshold
-			boolean isrRNA = matchhitThreshold(0.8, 3);
-			System.out.println(temp+"\t"+ (isrRNA ? 1 : 0));
+				t = Stats.start();
+				for (int i = 0; i < n; i++)
+					System.out.println(result(score[i], isrRNA[i], scoreOnly,
+						cal, tester[i].length(), dbsize));
+				t = Stats.stop(Stats.Stage.OUTPUT, t, n, 0);
+			}
+		} finally {
+			scorer.shutdown();
 		}
+		
+		if (filters != null)
+			System.out.println(filters.passRates());
 	
 	
 	}
+	
+	
+	
+	/** Line of the output of a testsequence: score, decision (not for
+		score-only) and the E-value of the viterbi score (with a calibration).
+		@param score Score of the sequence
+		@param isrRNA Decision rRNA / Non-rRNA
+		@param scoreOnly True -> only the score
+		@param cal Calibration of the model (null -> no E-value)
+		@param length Length of the sequence
+		@param dbsize Number of sequences for the E-value*/
+	static String result(double score, boolean isrRNA, boolean scoreOnly,
+			Calibration cal, int length, double dbsize) {
+		String line = scoreOnly ? String.valueOf(score)
+			: score+"\t"+ (isrRNA ? 1 : 0);
+		if (cal != null)
+			line += "\t"+cal.eValue(score, length, dbsize);
+		return line;
+	}
+	
+	
+	
+	/** Sweep of the thresholds of the matchhit-method (see ThresholdSweep):
+		one viterbi run per testsequence, then the whole grid is evaluated.
+		@param scorer Scorer for the viterbi paths
+		@param path Path to the file with the testsequences
+		@param q Thresholds for Q
+		@param l Thresholds for L
+		@param labelPath Path to the labels of the testsequences (null -> none)
+		@param threads Number of threads for the evaluation*/
+	private static void sweep(BatchScorer scorer, String path, double[] q,
+			double[] l, String labelPath, int threads) throws IOException {
+		boolean[] labels = (labelPath == null) ? null
+			: ThresholdSweep.labels(labelPath);
+		ThresholdSweep sweep = new ThresholdSweep();
+		PackedSeq[] tester = new PackedSeq[BATCHSIZE];
+		double[] score = new double[BATCHSIZE];
+		int[] hits = new int[BATCHSIZE], chains = new int[BATCHSIZE];
+		try (FastaReader r = new FastaReader(path)) {
+			int n;
+			long t = Stats.start();
+			while ((n = r.next(tester, BATCHSIZE)) > 0) {
+				Stats.stop(Stats.Stage.PARSE, t, n, 0);
+				scorer.summarize(tester, 0, n, score, hits, chains);
+				for (int i = 0; i < n; i++)
+					sweep.add(tester[i].length(), hits[i], chains[i]);
+				t = Stats.start();
+			}
+		}
+		
+		long t = Stats.start();
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			sweep.report(q, l, labels, pool, System.out);
+		} finally {
+			pool.shutdown();
+		}
+		Stats.stop(Stats.Stage.OUTPUT, t, sweep.size(), 0);
+	}
+	
+	
+	
+	/** Scores the testsequences with a library of saved models (see
+		LibraryScorer) and prints per sequence the score & decision of the
+		best model, its name (the file name without extension) and the scores
+		of all models in the order of the header.
+		@param files Paths to the model files (see ModelFile)
+		@param path Path to the file with the testsequences
+		@param threads Number of threads
+		@param maxCells Maximal number of cells per thread (-1 -> heap)*/
+	private static void scoreLibrary(List<String> files, String path,
+			int threads, long maxCells) throws IOException {
+		long t = Stats.start();
+		PHMM[] models = new PHMM[files.size()];
+		String[] names = new String[files.size()];
+		for (int m = 0; m < models.length; m++) {
+			models[m] = ModelFile.load(files.get(m));
+			names[m] = new File(files.get(m)).getName().replaceFirst(
+				"\\.[^.]*$", "");
+		}
+		Stats.stop(Stats.Stage.PARSE, t, 0, 0);
+		
+		System.out.println("Starting to test...");
+		System.out.println("#score\tisrRNA\tmodel\t"+String.join("\t", names));
+		if (maxCells < 0)	//full matrices may use half of the heap
+			maxCells = Runtime.getRuntime().maxMemory() 
+				/ (2 * threads * ViterbiWorker.BYTES_PER_CELL);
+		LibraryScorer scorer = 
+			new LibraryScorer(models, threads, maxCells, 0.8, 3);
+		PackedSeq[] tester = new PackedSeq[BATCHSIZE];
+		double[][] score = new double[BATCHSIZE][models.length];
+		boolean[][] isrRNA = new boolean[BATCHSIZE][models.length];
+		try (FastaReader r = new FastaReader(path)) {
+			int n;
+			t = Stats.start();
+			while ((n = r.next(tester, BATCHSIZE)) > 0) {
+				Stats.stop(Stats.Stage.PARSE, t, n, 0);
+				scorer.score(tester, n, score, isrRNA);
+				
+				t = Stats.start();
+				for (int i = 0; i < n; i++) {
+					int b = LibraryScorer.best(score[i]);
+					StringBuilder line = new StringBuilder();
+					line.append(score[i][b]).append('\t')
+						.append(isrRNA[i][b] ? 1 : 0).append('\t')
+						.append(names[b]);
+					for (double s : score[i])
+						line.append('\t').append(s);
+					System.out.println(line);
+				}
+				t = Stats.stop(Stats.Stage.OUTPUT, t, n, 0);
+			}
+		} finally {
+			scorer.shutdown();
+		}
+	}
+		
+		
+	
+	/** Reads the MSA of the trainingsequences & trains the PHMM with it.
+		@param path Path to the file with the MSA*/
+	private static void trainFromFile(String path) throws IOException {
+		ArrayList<String> headers = new ArrayList<String>();
+		
+		//init arrays for headers and sequences
+		long t = Stats.start();
+		seq = readMSA(path, headers);
+		seqnr = seq.length;
+		header = headers.toArray(new String[seqnr]);
+		t = Stats.stop(Stats.Stage.PARSE, t, seqnr, 0);
 		
+		//train the PHMM
+		train();
+		Stats.stop(Stats.Stage.TRAIN, t, seqnr, 0);
+	}
+	
+	
+	
+	/** Trains a PHMM with an MSA that is already in memory (for Benchmark).
+		@param msa The aligned sequences
+		@return The trained model*/
+	static PHMM train(PackedSeq[] msa) {
+		seq = msa;
+		seqnr = msa.length;
+		header = new String[seqnr];
+		train();
+		return model;
+	}
+	
+	
+	
+	/** Trains the PHMM in one pass over the file with the MSA, the MSA is
+		never in memory (see AlignmentCounter).
+		@param path Path to the file with the MSA (FASTA or Stockholm)*/
+	private static void trainStreaming(String path) throws IOException {
+		System.out.println("#Counting the MSA in one pass...");
+		train(AlignmentCounter.count(path));
+	}
+	
+	
+	
+	/** Refines the model with the Baum-Welch algorithm (EM, see BaumWelch):
+		the E-steps run in parallel on the pool of the training, it stops if
+		the log-posterior (log-likelihood of the sequences + prior of the
+		pseudocounts, what EM maximizes) improves less than BWTOLERANCE
+		(relative) or after the given number of iterations.
+		@param path Path to the file with the sequences (FASTA or Stockholm,
+			gaps are removed, so the MSA of the training can be used too)
+		@param iterations Maximal number of iterations (M-steps)*/
+	private static void baumWelch(String path, int iterations)
+			throws IOException {
+		PackedSeq[] seqs = readMSA(path, new ArrayList<String>());
+		for (int i = 0; i < seqs.length; i++)
+			seqs[i] = seqs[i].withoutGaps();
+		System.out.println("#Baum-Welch with "+seqs.length+" sequences...");
+		
+		double last = Double.NEGATIVE_INFINITY;
+		for (int it = 1; it <= iterations; it++) {
+			PHMM m = model;
+			BaumWelch.Counts c = parallel(() -> BaumWelch.expect(m, seqs));
+			double post = c.logLikelihood + BaumWelch.logPrior(m, pseudo);
+			System.out.println("Iteration "+it+": log-likelihood "
+				+c.logLikelihood+", log-posterior "+post
+				+(c.skipped > 0 ? " ("+c.skipped+" sequences have the "
+				+"probability 0 with the model, they are not counted)" : ""));
+			if (c.sequences == 0)
+				throw new IllegalArgumentException("No sequence has a "
+					+"probability above 0 with the model");
+			
+			//converged -> the actual model stays
+			if (post - last < BWTOLERANCE * Math.abs(last))
+				break;
+			model = BaumWelch.estimate(m, c, pseudo);
+			last = post;
+		}
 		
+		System.out.println("#Finished Baum-Welch!\n");
+	}
+	
+	
+	
+	/** Reads a MSA out of a file (FASTA, the lines of an alignment may be
+		wrapped, or Stockholm).
+		@param path Path to the file with the MSA
+		@param headers List for the headers of the sequences
+		@return The aligned sequences*/
+	private static PackedSeq[] readMSA(String path,
+			ArrayList<String> headers) throws IOException {
+		ArrayList<PackedSeq> seqs = new ArrayList<PackedSeq>();
+		
+		if (StockholmReader.isStockholm(path)) {
+			//the parts of the rows are put together (the gaps '.', '_' & '~'
+			//become '-' in PackedSeq)
+			ArrayList<StringBuilder> rows = new ArrayList<StringBuilder>();
+			try (StockholmReader r = new StockholmReader(path)) {
+				while (r.next()) {
+					if (r.index() == rows.size())
+						rows.add(new StringBuilder());
+					StringBuilder row = rows.get(r.index());
+					for (int k = 0; k < r.length(); k++)
+						row.append((char) (r.part()[k] & 0xff));
+				}
+				headers.addAll(r.names());
+			}
+			for (StringBuilder row : rows)
+				seqs.add(PackedSeq.of(row));
+			return seqs.toArray(new PackedSeq[seqs.size()]);
+		}
+		
+		try (FastaReader r = new FastaReader(path)) {
+			while (r.next()) {
+				headers.add(r.header());
+				seqs.add(r.packed());
+			}
+		}
+		
+		return seqs.toArray(new PackedSeq[seqs.size()]);
+	}
+	
+	
 	
 	/** Prints the matchpositions and the emissionprobabilities for each char.*/
 	private static void printMatchPositions() {
@@ -259,12 +807,12 @@ public class RNASequenceTrain {
 		int ptr = 0;
 		System.out.println("Pos.\te_pos('A')\te_pos('C')\te_pos('G')"
 						+"\te_pos('U')");
-		for (int i = 0; i < isMatch.length; i++) {
-			if (isMatch[i]) {
+		for (int i = 0; i < model.isMatch.length; i++) {
+			if (model.isMatch[i]) {
 				System.out.print((ptr+1)+"\t");
 				
-				for (int l = 0; l < eprobmat[0].length; l++)
-					System.out.format("%.8f\t", eprobmat[ptr][l]);
+				for (int l = 0; l < model.eprobmat[0].length; l++)
+					System.out.format("%.8f\t", model.eprobmat[ptr][l]);
 					
 				System.out.println();
 				ptr++;
@@ -295,12 +843,18 @@ public class RNASequenceTrain {
 		isMatch = new boolean[seqlen];
 		matnr = 0;
 		int lastmatchpos = 0;
-		for (int j = 0; j < seqlen; j++) {
+		//gaps per column, the columns are counted in parallel
+		gaps = new int[seqlen];
+		parallel(() -> IntStream.range(0, seqlen).parallel().forEach(j -> {
 			int countgaps = 0;
 			for (int i = 0; i < seqnr; i++){
-				if (seq[i].charAt(j) == '-')
+				if (seq[i].isGap(j))
 					countgaps++; 	
 			}
+			gaps[j] = countgaps;
+		}));
+		for (int j = 0; j < seqlen; j++) {
+			int countgaps = gaps[j];
 			if (2 * countgaps >= seqnr)	//matchposition?
 				isMatch[j] = false;			//no
 			else {
@@ -318,50 +872,91 @@ public class RNASequenceTrain {
 		//2. Count all emissions for each pos. & estimate emissionprobabilities
 		System.out.println("Counting all emissions...");
 		ecounts = new int[seqlen][4];
-		eprobmat = new double[matnr][4];
-		eprobins = new double[matnr+1][4]; 	//before and after every matchpos.
 		
 		
-		//2.1 Count emissions for each column
-		for (int j = 0; j < seqlen; j++) {
-			int[] temp = new int[4];   //[0]='A',[1]='C',[2]='G',[3]='U' 
-			for (int i = 0; i < seqnr; i++)
-				switch (seq[i].charAt(j)) {
-					case 'A' : 
-						temp[0]++;
-						break;
-						
-					case 'C' :
-						temp[1]++;
-						break;
-						
-					case 'G' :
-						temp[2]++;
-						break;
-						
-					case 'U' : 
-						temp[3]++;
-						break;
-						
-					case '-' :
-						//temp[4]++;	//ignore gaps		
-						break;
-						
-					default :
-						throw new IllegalArgumentException("The character "+
-						seq[i].charAt(j)+" in sequence "+i+" at position "+j+
-						" is not valid");
-				}
-				
-			ecounts[j] = temp;
-				 
-		}
+		//2.1 Count emissions for each column (blocks of columns in parallel)
+		parallel(() -> IntStream.range(0, seqlen).parallel()
+			.forEach(j -> ecounts[j] = countEmissions(seq, j)));
 		
 		
 		System.out.println("Counted all emissions!");
 		
 		
 		//2.2 Estimate emissionprobabilities with relative frequencies
+		estimateEmissions();
+		
+		
+		
+		
+		//2.3 Count all transitions & estimate transitionprobabilities
+		System.out.println("Counting all transitions...");
+		//the sequences are split up into shards that are counted in parallel,
+		//every shard has its own counts that are added up afterwards (the
+		//sums are integers, so the result does not depend on the shards),
+		//matnr + 1 columns: plus one for the initial insert
+		tcounts = parallel(() -> IntStream.range(0, seqnr).parallel()
+			.collect(() -> new int[matnr + 1][stsize],
+				(counts, i) -> countTransitions(seq[i], isMatch, counts),
+				RNASequenceTrain::addCounts));
+		
+		
+		
+		
+		
+		
+		
+		//for (ST s : ST.values())
+			
+		
+		
+		
+		System.out.println("Counted all transitions!");
+		
+		
+		
+		
+		//2.3.3 Estimate the transitionprobabilities out of the counts
+		estimateTransitions();
+		
+		//3. Save the result as immutable model for the viterbi workers and
+		//the counts for updates
+		model = new PHMM(isMatch, matnr, eprobmat, eprobins, tprob);
+		counts = new CountStore(isMatch, gaps, ecounts, tcounts, seqnr);
+		System.out.println("#Finished training!\n");
+		
+	
+	}
+	
+	
+	
+	/** Estimates the PHMM out of the counts of a CountStore (instead of the
+		counting of train()), the time only depends on the size of the model.
+		@param c Counts of the training (is not changed)*/
+	private static void train(CountStore c) {
+		System.out.println("#Estimating out of the counts of "+c.sequences()
+			+" sequences...");
+		isMatch = c.isMatch();
+		matnr = c.matnr();
+		seqlen = isMatch.length;
+		gaps = c.gaps();
+		ecounts = c.ecounts();
+		tcounts = c.tcounts();
+		
+		estimateEmissions();
+		estimateTransitions();
+		
+		model = new PHMM(isMatch, matnr, eprobmat, eprobins, tprob);
+		counts = c;
+		System.out.println("#Finished training!\n");
+	}
+	
+
+	/** Estimates the emissionprobabilities (eprobmat, eprobins & eprob) out
+		of the counts ecounts at the matchpositions isMatch.*/
+	private static void estimateEmissions() {
+		eprobmat = new double[matnr][4];
+		eprobins = new double[matnr+1][4]; 	//before and after every matchpos.
+		
 		//2.2.1 Estimate at matchingpositions
 		System.out.println("Estimating at matchpositions...");
 		int index = 0;
@@ -476,173 +1071,13 @@ public class RNASequenceTrain {
 		}
 		
 		System.out.println("Saved emissionprobabilities to one matrix!");
-		
-		
-		
-		
-		//2.3 Count all transitions & estimate transitionprobabilities
-		System.out.println("Counting all transitions...");
-		tcounts = new int[matnr + 1][stsize];	//plus one for initial insert
-		
-		for (int i = 0; i < seqnr; i++) {
-			
-			//2.3.1 Build state path for this sequence
-			State[] p = new State[seqlen];
-						
-			for (int j = 0; j < p.length; j++) {
-				if (isMatch[j]) {	//it is a matchposition
-					if (seq[i].charAt(j) == '-')//gap means deletion
-						p[j] = State.D;
-					else						//no gap means matching
-						p[j] = State.M;			//must match because MSA
-				}
-				else {				//it is no matchposition
-					if (seq[i].charAt(j) == '-')
-						p[j] = null;			//gap will be skipped
-					else
-						p[j] = State.I;			//no gap means insertion
-				}
-			}
-		
-		
-			//2.3.2 Count transitions for this path
-			
-			
-			State succ = null, s = p[0];
-			int ptr = 0;
-			
-			//first column of tcounts are transitions from State.B to[0]			
-			if (s == State.M)	 			//abuse MTM row for BTM
-				tcounts[0][ST.MTM.row]++;
-			else if (s == State.I)			//abuse MTI row for BTI 
-				tcounts[0][ST.MTI.row]++;		//(!ITI is needed)
-			else if (s == State.D)			//abuse MTD row for BTD
-				tcounts[0][ST.MTD.row]++;	 			
-			else if (s == null) {
-				//were starting with null so get the first not null state
-				int l = 1;		//we shouldnt have a seq like "----.....-----"
-				while (p[l] == null)
-					l++;
-				s = p[l];
-				if (s == State.M)		//look above
-					tcounts[0][ST.MTM.row]++;
-				else if (s == State.I)			
-					tcounts[0][ST.MTI.row]++;		
-				else if (s == State.D)		
-					tcounts[0][ST.MTD.row]++;
-				else {
-					System.out.println("Problem at tcounts[0]!");
-					
-				}
-			}
-			
-			//is first state an insertstate with gap(s)?
-			if (p[0] == null) {
-				//find the succ. not null state and check it
-				int l = 1;
-				while (p[l] == null)
-					l++;
-				s = p[l];
-				
-				if (s == State.M || s == State.D)
-					ptr = 1;
-				else
-					ptr = 0;
-			}
-			
-			for (int j = 0; j < p.length - 1; j++) {
-				s = p[j];
-				
-				//skip because there was no transition
-				if (s == null)
-					continue;
-				
-				
-				//is first state a match or delete?
-				if (j == 0) {
-					if (s == State.M || s == State.D)
-						ptr = 1;
-				}
-				
-				//get succ. state
-				int k = j+1;
-				while (k < p.length && p[k] == null)
-					k++;
-				
-				if (k >= p.length) {
-					//path ends with a (chain of) null value(s)
-					//will be handled after for loop
-					break;
-				}	
-		 	
-		 		succ = p[k];
-					 
-				ST st = ST.getTransition(s, succ);
-				if (st == null) {	
-					//should not occur
-					System.err.println("NULL at ST.getTransition(...)!");
-					System.exit(1);
-				}
-				
-				
-				tcounts[ptr][st.row]++;
-				
-				
-				
-			
-				//only increment ptr if the transition was not to an insertstate
-				if (st == ST.MTI || st == ST.ITI || st == ST.DTI)
-					;
-				else
-					ptr++;
-			}
-			
-			
-			//last column are transitions to end state
-			//tcounts[seqlen][ST.getTransition(p[p.length-1], State.E).row]++;
-			s = p[p.length - 1];
-			
-			if (s == State.M)			//here abuse: the ..TM states
-				tcounts[tcounts.length - 1][ST.MTM.row]++;
-			else if (s == State.D)
-				tcounts[tcounts.length - 1][ST.DTM.row]++;
-			else if (s == State.I)
-				tcounts[tcounts.length - 1][ST.ITM.row]++;
-			else if (s == null) {
-				//this is the case with null(chain) at the end; analog to start:
-				//find the first prev. not null state -> count transition to end
-				int l = p.length - 2;
-				while (p[l] == null)
-					l--;
-				s = p[l];
-				
-				if (s == State.M)			//see above
-					tcounts[tcounts.length - 1][ST.MTM.row]++;
-				else if (s == State.D)
-					tcounts[tcounts.length - 1][ST.DTM.row]++;
-				else if (s == State.I)
-					tcounts[tcounts.length - 1][ST.ITM.row]++;
-			
-			}
-		
-		}	//end of for over all paths
-		
-		
-		
-		
-		
-		
-		//for (ST s : ST.values())
-			
-		
-		
-		
-		System.out.println("Counted all transitions!");
-		
-		
-		
-		
-		//2.3.3 Estimate the transitionprobabilities out of the counts
+	}
+	
+	
+	
+	/** Estimates the transitionprobabilities tprob out of the counts
+		tcounts.*/
+	private static void estimateTransitions() {
 		System.out.println("Estimating transitionprobabilities...");
 		tprob = new double[tcounts.length][];
 		
@@ -713,416 +1148,232 @@ public class RNASequenceTrain {
 			
 		
 		System.out.println("Estimated transitionprobabilities!");
-		System.out.println("#Finished training!\n");
-		
-	
 	}
 	
-
-	/** Calculates vM at the position (i, j).*/
-	private static void viterbiM(int i, int j) {
-		double maximum = - Double.MAX_VALUE;
-		double[] potMax = new double[3];
-		int maxCase = 0;
-		
-		
-		//calculate the cases
-		potMax[0] = vM[i-1][j-1] + Math.log(tprob[j-1][ST.MTM.row]);
-		potMax[1] = vI[i-1][j-1] + Math.log(tprob[j-1][ST.ITM.row]);
-		potMax[2] = vD[i-1][j-1] + Math.log(tprob[j-1][ST.DTM.row]);
-		
 	
 	
-		//get the maximum
-		for (int z = 0; z < potMax.length; z++)
-			if (maximum < potMax[z]) {
-				maximum = potMax[z];
-				maxCase = z;
-			}
-		
-		//multiplicate with emissionprobability
-		int xi = "ACGU".indexOf(testseq.charAt(i - 1));
-		vM[i][j] = Math.log(eprobmat[j - 1][xi]) + maximum;
-		
-		//for debug/backtrack
-		dir d = null;
-		switch (maxCase) {
-			case 0 : d = dir.UPLEFT; break;
-			case 1 : d = dir.UP; break;
-			case 2 : d = dir.LEFT; break;
+	/** Counts the emissions of one column of the MSA.
+		@param seq Aligned sequences (rows of the MSA)
+		@param j Column
+		@return Counts [0]='A',[1]='C',[2]='G',[3]='U'*/
+	static int[] countEmissions(PackedSeq[] seq, int j) {
+		int[] temp = new int[4];   //[0]='A',[1]='C',[2]='G',[3]='U' 
+		for (int i = 0; i < seq.length; i++) {
+			//the packed code is the index
+			int c = seq[i].code(j);
+			if (c >= 0)
+				temp[c]++;
+			else if (!seq[i].isGap(j))		//ignore gaps
+				throw new IllegalArgumentException("The character "+
+				seq[i].charAt(j)+" in sequence "+i+" at position "+j+
+				" is not valid");
 		}
-		btM[i][j] = d;
+			
+		return temp;
 	}
 	
 	
 	
-	/** Calculates vI at the position (i, j).*/
-	private static void viterbiI(int i, int j) {
-		double maximum = - Double.MAX_VALUE;
-		double[] potMax = new double[3];
-		int maxCase = 0;
-		
-		//calculate the cases
-		potMax[0] = vM[i-1][j] + Math.log(tprob[j][ST.MTI.row]);
-		potMax[1] = vI[i-1][j] + Math.log(tprob[j][ST.ITI.row]);
-		potMax[2] = vD[i-1][j] + Math.log(tprob[j][ST.DTI.row]);
+	/** Builds the state path of one trainingsequence & counts its
+		transitions.
+		@param sequence Aligned sequence (row of the MSA)
+		@param isMatch Matchpositions of the MSA
+		@param counts Matrix for the counts of the transitions [pos][ST]*/
+	static void countTransitions(PackedSeq sequence, boolean[] isMatch,
+			int[][] counts) {
 		
-	
-	
-		//get the maximum
-		for (int z = 0; z < potMax.length; z++)
-			if (maximum < potMax[z]) {
-				maximum = potMax[z];
-				maxCase = z;
+		//2.3.1 Build state path for this sequence
+		State[] p = new State[sequence.length()];
+					
+		for (int j = 0; j < p.length; j++) {
+			if (isMatch[j]) {	//it is a matchposition
+				if (sequence.isGap(j))//gap means deletion
+					p[j] = State.D;
+				else						//no gap means matching
+					p[j] = State.M;			//must match because MSA
+			}
+			else {				//it is no matchposition
+				if (sequence.isGap(j))
+					p[j] = null;			//gap will be skipped
+				else
+					p[j] = State.I;			//no gap means insertion
 			}
-		
-		//multiplicate with emissionprobability
-		int xi = "ACGU".indexOf(testseq.charAt(i - 1));
-		vI[i][j] = Math.log(eprobins[j][xi]) + maximum;
-		
-		//for debug/backtrack 
-		dir d = null;
-		switch (maxCase) {
-			case 0 : d = dir.UPLEFT; break;
-			case 1 : d = dir.UP; break;
-			case 2 : d = dir.LEFT; break;
 		}
-		btI[i][j] = d;
+		
+		countPath(p, counts);
 	}
 	
 	
 	
-	/** Calculates vD at the position (i, j).*/
-	private static void viterbiD(int i, int j) {
-		double maximum = - Double.MAX_VALUE;
-		double[] potMax = new double[3];
-		int maxCase = 0;
-	
-		//calculate the cases
-		potMax[0] = vM[i][j-1] + Math.log(tprob[j-1][ST.MTD.row]);
-		potMax[1] = vI[i][j-1] + Math.log(tprob[j-1][ST.ITD.row]);
-		potMax[2] = vD[i][j-1] + Math.log(tprob[j-1][ST.DTD.row]);
-		
-		
-		//get the maximum
-		for (int z = 0; z < potMax.length; z++)
-			if (maximum < potMax[z]) {
-				maximum = potMax[z];
-				maxCase = z;
-			}
-		
-		//delete is 'silent' -> no emissionprobability
-		vD[i][j] = maximum;
-		
-		//for debug/backtrack
-		dir d = null;
-		switch (maxCase) {
-			case 0 : d = dir.UPLEFT; break;
-			case 1 : d = dir.UP; break;
-			case 2 : d = dir.RIGHT; break;
-		}
-		btD[i][j] = d;
-	}
+	/** Counts the transitions of the state path of one trainingsequence.
+		@param p State path over the columns of the MSA (null: gap at an
+			insertposition)
+		@param counts Matrix for the counts of the transitions [pos][ST]*/
+	static void countPath(State[] p, int[][] counts) {
 	
-
-	/** Process the viterbi algorithm for the testsequence in the variable
-		testseq.
-		@return Score of the viterbi path*/
-	private static double processViterbi() {
-		//init v's & bt's and calculate the viterbipath with them
-		int lengthOfSequence = testseq.length();
-		vM = new double[1 + lengthOfSequence][1 + matnr];
-		btM = new dir[vM.length][vM[0].length];
-		vI = new double[1 + lengthOfSequence][1 + matnr];
-		btI = new dir[vI.length][vI[0].length];
-		vD = new double[1 + lengthOfSequence][1 + matnr];
-		btD = new dir[vD.length][vD[0].length];
-		
-		
-		//starting here log(1.0) = 0, first row and col -inf
-		vM[0][0] = 0; 	
-		for (int i = 1; i < vM.length; i++)
-			vM[i][0] = Double.NEGATIVE_INFINITY;
-		for (int j = 1; j < vM[0].length; j++)
-			vM[0][j] = Double.NEGATIVE_INFINITY;
-			
-		for (int j = 0; j < vI.length; j++) 
-			vI[j][0] = Double.NEGATIVE_INFINITY;
-		
-		for (int i = 0; i < vD[0].length; i++)
-			vD[0][i] = Double.NEGATIVE_INFINITY;
+		//2.3.2 Count transitions for this path
 		
 		
+		State succ = null, s = p[0];
+		int ptr = 0;
 		
-		for (int i = 1; i < vM.length; i++) {
-			//viterbiD(0, 1);
-			for (int j = 1; j < vM[0].length; j++) {
-				viterbiM(i, j);
-				viterbiI(i, j);
-				viterbiD(i, j);
+		//first column of counts are transitions from State.B to[0]			
+		if (s == State.M)	 			//abuse MTM row for BTM
+			counts[0][ST.MTM.row]++;
+		else if (s == State.I)			//abuse MTI row for BTI 
+			counts[0][ST.MTI.row]++;		//(!ITI is needed)
+		else if (s == State.D)			//abuse MTD row for BTD
+			counts[0][ST.MTD.row]++;	 			
+		else if (s == null) {
+			//were starting with null so get the first not null state
+			int l = 1;		//we shouldnt have a seq like "----.....-----"
+			while (p[l] == null)
+				l++;
+			s = p[l];
+			if (s == State.M)		//look above
+				counts[0][ST.MTM.row]++;
+			else if (s == State.I)			
+				counts[0][ST.MTI.row]++;		
+			else if (s == State.D)		
+				counts[0][ST.MTD.row]++;
+			else {
+				System.out.println("Problem at counts[0]!");
+				
 			}
 		}
 		
-		
-		
-	
-	
-		//termination
-		State ter;
-		double max;
-		if (vM[lengthOfSequence][matnr] >= vI[lengthOfSequence][matnr] &&
-			vM[lengthOfSequence][matnr] >= vD[lengthOfSequence][matnr]) {
-			ter = State.M;
-			max = vM[lengthOfSequence][matnr];
-		
-		} else if (vI[lengthOfSequence][matnr] >= vD[lengthOfSequence][matnr]) {
-			ter = State.I;
-			max = vM[lengthOfSequence][matnr];
-		} else {
-			ter = State.D; 	
-			max = vM[lengthOfSequence][matnr];
-		}
-		
-		//Debug
-		
-		
-		return max;
-		}
-	
-	/** Calculate the minimum score of the first n trainingsequences plus the
-		logarithmized factor
-		@param n The first n trainingsequence's scores will be compared
-		@param factor Factor for threshold
-		@return logar. Threshold (incl. factor)*/
-	private static double minimumThreshold(int n, double factor) {
-		
-		double min = Double.MAX_VALUE, temp;
-	
-		for (int i = 0; i < n; i++) {
-			testseq = seq[i].replace("-","");
-			temp = processViterbi();
-			if (min > temp)
-				min = temp;
+		//is first state an insertstate with gap(s)?
+		if (p[0] == null) {
+			//find the succ. not null state and check it
+			int l = 1;
+			while (p[l] == null)
+				l++;
+			s = p[l];
+			
+			if (s == State.M || s == State.D)
+				ptr = 1;
+			else
+				ptr = 0;
 		}
 		
-		return min + Math.log(factor);
-	}
-	
-	/** Decide, whether the testseq is rRNA / Non-rRNA (see protocol) with the
-		"matchhit-method".
-		@param qthr Threshold for Q
-		@param lthr Threshold for L
-		@return True, if (Q >= qthr && L >= lthr) --> rRNA*/
-	private static boolean matchhitThreshold(double qthr, double lthr) {
+		for (int j = 0; j < p.length - 1; j++) {
+			s = p[j];
+			
+			//skip because there was no transition
+			if (s == null)
+				continue;
+			
 			
-		ArrayList<State> path = new ArrayList<State>();
-		State ter;
-		int lengthOfSequence = testseq.length();
-		//get terminating state
-		if (vM[lengthOfSequence][matnr] >= vI[lengthOfSequence][matnr] &&
-			vM[lengthOfSequence][matnr] >= vD[lengthOfSequence][matnr])
-			ter = State.M;
-		else if (vI[lengthOfSequence][matnr] >= vD[lengthOfSequence][matnr])
-			ter = State.I;
-		else 
-			ter = State.D; 	
-		
-		path = backtrack(ter, lengthOfSequence, matnr, path);
-		
-	
-		//count matchhits of path
-		int hitcounter = 0;
-		for (int i = 0; i < path.size(); i++)
-			if (path.get(i) == State.M)
-				hitcounter++;
-	
-		//count chainlengths
-		ArrayList<Integer> chainlengths = new ArrayList<Integer>();
-		int index = 0, end;
-		while (index < path.size()) {
-			if (path.get(index) != State.M) { 	//no match so go on
-				index++;	
+			//is first state a match or delete?
+			if (j == 0) {
+				if (s == State.M || s == State.D)
+					ptr = 1;
 			}
-			else {
-				//find end of chain
-				end = index + 1;
-				while (end < path.size() && path.get(end) == State.M)
-					end++;
-				
-				chainlengths.add(end - index);
-				
-				index = end + 1;
+			
+			//get succ. state
+			int k = j+1;
+			while (k < p.length && p[k] == null)
+				k++;
+			
+			if (k >= p.length) {
+				//path ends with a (chain of) null value(s)
+				//will be handled after for loop
+				break;
+			}	
+	 	
+	 		succ = p[k];
+				 
+			ST st = ST.getTransition(s, succ);
+			if (st == null) {	
+				//should not occur
+				System.err.println("NULL at ST.getTransition(...)!");
+				System.exit(1);
 			}
+			
+			
+			counts[ptr][st.row]++;
+			
+			
+			
 		
+			//only increment ptr if the transition was not to an insertstate
+			if (st == ST.MTI || st == ST.ITI || st == ST.DTI)
+				;
+			else
+				ptr++;
 		}
 		
-		//calculate Q and L
-		double Q = (double) hitcounter / lengthOfSequence;
-		double L = 0;
-		for (int i = 0; i < chainlengths.size(); i++)
-			L += chainlengths.get(i);
-		L /= chainlengths.size();
-		
 		
+		//last column are transitions to end state
+		//counts[seqlen][ST.getTransition(p[p.length-1], State.E).row]++;
+		s = p[p.length - 1];
+		
+		if (s == State.M)			//here abuse: the ..TM states
+			counts[counts.length - 1][ST.MTM.row]++;
+		else if (s == State.D)
+			counts[counts.length - 1][ST.DTM.row]++;
+		else if (s == State.I)
+			counts[counts.length - 1][ST.ITM.row]++;
+		else if (s == null) {
+			//this is the case with null(chain) at the end; analog to start:
+			//find the first prev. not null state -> count transition to end
+			int l = p.length - 2;
+			while (p[l] == null)
+				l--;
+			s = p[l];
+			
+			if (s == State.M)			//see above
+				counts[counts.length - 1][ST.MTM.row]++;
+			else if (s == State.D)
+				counts[counts.length - 1][ST.DTM.row]++;
+			else if (s == State.I)
+				counts[counts.length - 1][ST.ITM.row]++;
 		
-		return (Q >= qthr && L >= lthr);
-	}
-	
-	
-	
-	
-	/** Backtrack the viterbipath recursively.
-		@param ter Terminal state
-		@param i Character at position i in testseq
-		@param j State at position j
-		@param list ArrayList where the path shall be saved in
-		@return Viterbipath*/
-	private static ArrayList<State> backtrack(State ter, int i, int j,
-				ArrayList<State> list) {
-		if (i == 0 && j == 0)
-			return list;
-	
-		if (i == 0) {
-			//there are no more characters -> so there are deletions
-			while (j > 0) {
-				list.add(State.D);
-				j--;
-			}
-			return list;
-		}
-		else if (j == 0) {
-			//there are still characters -> so there are insertions
-			while (i > 0) {
-				list.add(State.I);
-				i--;
-			}
-			return list;
 		}
+	}
 	
 	
 	
-		State st = null;
-		//get the direction we came from -> recursion
-		switch (ter) {
-			
-			case M :
-				if (btM[i][j] == dir.UPLEFT)
-					st = State.M;
-				else if (btM[i][j] == dir.UP)
-					st = State.I;
-				else
-					st = State.D;
-					
-				list = backtrack(st, i-1, j-1, list);
-				break;
-				
-			case I :
-				if (btI[i][j] == dir.UPLEFT)
-					st = State.M;
-				else if (btI[i][j] == dir.UP)
-					st = State.I;
-				else 
-					st = State.D;
-					
-				list = backtrack(st, i-1, j, list);
-				break;
-				
-			case D : 
-				if (btD[i][j] == dir.UPLEFT)
-					st = State.M;
-				else if (btD[i][j] == dir.RIGHT)
-					st = State.D;
-				else 
-					st = State.I;
-					
-				list = backtrack(st, i, j-1, list);
-				break;
-			
-		}
-		
-		//return path plus the last state (ter)
-		
-		list.add(ter);
-		return list;
-	
+	/** Adds the counts b to a (reduction of the shards).*/
+	private static void addCounts(int[][] a, int[][] b) {
+		for (int i = 0; i < a.length; i++)
+			for (int j = 0; j < a[i].length; j++)
+				a[i][j] += b[i][j];
 	}
 	
 	
 	
+	/** Runs a parallel task of the training on the pool of the training
+		(training threads) and waits for it.*/
+	private static <T> T parallel(Callable<T> task) {
+		return BatchScorer.await(trainPool, task, "Training");
+	}
 	
 	
 	
+	/** Runs a parallel task without result, see above.*/
+	private static void parallel(Runnable task) {
+		parallel(Executors.callable(task));
+	}
 	
-	/** For debug/backtrack purposes. Returns the state path to the last viterbi
-		process with backtracking recursively.
-		@return State path*/
-	private static String printStateSeq(State ter, int i, int j) {
-		if (i == 0 && j == 0)
-			return "";
-		
-		if (i == 0) {
-			StringBuilder sb = new StringBuilder();
-			while (j > 0) {
-				sb.append(j+"D ");
-				j--;	
-			}
-			return sb.reverse().toString();
-		}
-			
-		if (j == 0) {
-			StringBuilder sb = new StringBuilder();
-			while (i > 0) {
-				sb.append("I0 ");
-				i--;
-			}
-			return sb.toString();
-		}
-			
+
+	/** Calculate the minimum score of the first n trainingsequences plus the
+		logarithmized factor
+		@param n The first n trainingsequence's scores will be compared
+		@param factor Factor for threshold
+		@return logar. Threshold (incl. factor)*/
+	private static double minimumThreshold(int n, double factor) {
 		
-		String ret = "";
-		State st = null;
+		double min = Double.MAX_VALUE, temp;
+		ViterbiWorker w = new ViterbiWorker(model);
 	
-		switch (ter) {
-			
-			case M :
-				if (btM[i][j] == dir.UPLEFT)
-					st = State.M;
-				else if (btM[i][j] == dir.UP)
-					st = State.I;
-				else
-					st = State.D;
-					
-				ret = printStateSeq(st, i-1, j-1) + " " + ter + j +ret;
-				break;
-				
-			case I :
-				if (btI[i][j] == dir.UPLEFT)
-					st = State.M;
-				else if (btI[i][j] == dir.UP)
-					st = State.I;
-				else 
-					st = State.D;
-					
-				ret = printStateSeq(st, i-1, j) + " " + ter + j + ret;
-				break;
-				
-			case D : 
-				if (btD[i][j] == dir.UPLEFT)
-					st = State.M;
-				else if (btD[i][j] == dir.RIGHT)
-					st = State.D;
-				else 
-					st = State.I;
-					
-				ret = printStateSeq(st, i, j-1) + " " + ter + j + ret;
-				break;
-			
+		for (int i = 0; i < n; i++) {
+			temp = w.processViterbi(seq[i].withoutGaps());
+			if (min > temp)
+				min = temp;
 		}
-	
-		return ret;
-	
-	} 
-	
-	
+		
+		return min + Math.log(factor);
+	}
 	
 }
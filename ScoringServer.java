@@ -0,0 +1,303 @@
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+import java.util.concurrent.*;
+
+/** Long-running scoring service on localhost (HTTP): the model is trained or
+	loaded only once, warmed up (so the JIT has compiled the kernels before
+	the first request) and then kept resident, every request only pays for
+	its own sequences. POST /score takes a FASTA file as body (any size, it is
+	read as a stream) and answers batch by batch (chunked) one line per
+	sequence: id (header up to the first whitespace), score, decision & with
+	a calibrated model the E-value, like the output of RNASequenceTrain. GET
+	/health answers "ok". Every request is handled on its own (virtual, with
+	java 21+) thread, which only waits while the shared BatchScorer computes
+	its batch on the pool, so the cores are used by the pool and not by the
+	number of the connections. At most maxRequests requests are scored at
+	once and at most maxRequests more wait up to WAIT seconds for their turn
+	(then 503), any further request is refused at once (503). So only these
+	requests block a thread, /health and the refusals are always answered
+	at once.*/
+final class ScoringServer {
+
+	//sequences per batch of a request
+	static final int BATCH = 256;
+	//default maximal number of requests that are scored at once
+	static final int REQUESTS = 4;
+	//seconds a request waits for a free slot
+	static final int WAIT = 30;
+	//random sequences (and their length) of every round of the warmup
+	static final int WARMUP = 32, WARMUP_LENGTH = 200;
+
+	//the scorer with the resident model
+	private final BatchScorer scorer;
+	//E-values of the scores (null -> none) and number of sequences for them
+	private final Calibration calibration;
+	private final double dbsize;
+	//true -> only the scores (no decision)
+	private final boolean scoreOnly;
+	//free slots for requests that are scored & for requests that wait
+	private final Semaphore slots, waiting;
+	//handler threads and the server
+	private final ExecutorService executor;
+	private final HttpServer server;
+	//true, if the handlers run on virtual threads
+	private final boolean virtual;
+
+
+
+	/** Binds the server to the loopback address (not started yet).
+		@param scorer Scorer with the model (all settings like for a file)
+		@param calibration Calibration of the scores (null -> no E-values)
+		@param dbsize Number of sequences for the E-values
+		@param scoreOnly True, if only the scores are answered
+		@param port Port (0 -> any free one, see port())
+		@param maxRequests Maximal number of requests that are scored at once*/
+	ScoringServer(BatchScorer scorer, Calibration calibration, double dbsize,
+			boolean scoreOnly, int port, int maxRequests) throws IOException {
+		if (maxRequests < 1)
+			throw new IllegalArgumentException("The number of requests must be "
+				+"at least 1 and not "+maxRequests);
+		if (port < 0 || port > 65535)
+			throw new IllegalArgumentException("Invalid port "+port);
+		this.scorer = scorer;
+		this.calibration = calibration;
+		this.dbsize = dbsize;
+		this.scoreOnly = scoreOnly;
+		this.slots = new Semaphore(maxRequests, true);
+		this.waiting = new Semaphore(maxRequests);
+
+		ExecutorService e = virtualExecutor();
+		virtual = (e != null);
+		if (e == null)
+			//before java 21: platform threads, created when needed (a fixed
+			//pool would queue /health behind the waiting requests); at most
+			//2 * maxRequests of them block, see score(..)
+			e = Executors.newCachedThreadPool(r -> {
+				Thread t = new Thread(r, "ScoringServer");
+				t.setDaemon(true);
+				return t;
+			});
+		executor = e;
+
+		server = HttpServer.create(new InetSocketAddress(
+			InetAddress.getLoopbackAddress(), port), 0);
+		server.setExecutor(executor);
+		server.createContext("/score", this::score);
+		server.createContext("/health", this::health);
+	}
+
+
+
+	/** Executor with one virtual thread per task (java 21+), null before.*/
+	private static ExecutorService virtualExecutor() {
+		try {
+			Method m = Executors.class.getMethod(
+				"newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) m.invoke(null);
+		} catch (ReflectiveOperationException
+				| UnsupportedOperationException e) {
+			return null;
+		}
+	}
+
+
+
+	/** Scores rounds of random sequences, so the kernels are compiled before
+		the first request (the results are dropped).
+		@param rounds Number of rounds*/
+	void warmup(int rounds) {
+		SplittableRandom r = new SplittableRandom(0);
+		PackedSeq[] seqs = new PackedSeq[WARMUP];
+		double[] score = new double[WARMUP];
+		boolean[] isrRNA = new boolean[WARMUP];
+		byte[] seq = new byte[WARMUP_LENGTH];
+		for (int k = 0; k < rounds; k++) {
+			for (int i = 0; i < WARMUP; i++) {
+				for (int j = 0; j < WARMUP_LENGTH; j++)
+					seq[j] = (byte) "ACGU".charAt(r.nextInt(4));
+				seqs[i] = PackedSeq.of(seq, WARMUP_LENGTH);
+			}
+			scorer.score(seqs, 0, WARMUP, score, isrRNA);
+		}
+	}
+
+
+
+	/** Starts to answer requests.*/
+	void start() {
+		server.start();
+	}
+
+
+
+	/** Port of the server.*/
+	int port() {
+		return server.getAddress().getPort();
+	}
+
+
+
+	/** True, if the requests are handled on virtual threads.*/
+	boolean isVirtual() {
+		return virtual;
+	}
+
+
+
+	/** Stops the server (running requests get up to one second) and the
+		handler threads, the scorer is not stopped.*/
+	void stop() {
+		server.stop(1);
+		executor.shutdownNow();
+	}
+
+
+
+	/** GET /health: "ok", while the server runs.*/
+	private void health(HttpExchange ex) throws IOException {
+		try (ex) {
+			if (!ex.getRequestURI().getPath().equals("/health"))
+				answer(ex, 404, "Not found");
+			else if (!ex.getRequestMethod().equals("GET"))
+				answer(ex, 405, "Only GET");
+			else
+				answer(ex, 200, "ok");
+		}
+	}
+
+
+
+	/** POST /score: scores the FASTA body batch by batch, every batch is
+		sent as soon as it is scored.*/
+	private void score(HttpExchange ex) throws IOException {
+		try (ex) {
+			if (!ex.getRequestURI().getPath().equals("/score")) {
+				answer(ex, 404, "Not found");
+				return;
+			}
+			if (!ex.getRequestMethod().equals("POST")) {
+				answer(ex, 405, "Only POST with a FASTA file");
+				return;
+			}
+
+			//no place to wait -> refused at once (no blocked thread)
+			if (!waiting.tryAcquire()) {
+				answer(ex, 503, "Too many requests, try again later");
+				return;
+			}
+			try {
+				if (!slots.tryAcquire(WAIT, TimeUnit.SECONDS)) {
+					answer(ex, 503, "Too many requests, try again later");
+					return;
+				}
+			} catch (InterruptedException e) {
+				//the server is stopped
+				Thread.currentThread().interrupt();
+				return;
+			} finally {
+				waiting.release();
+			}
+			try {
+				stream(ex);
+			} finally {
+				slots.release();
+			}
+		}
+	}
+
+
+
+	/** Reads, scores and answers the sequences of a request.*/
+	private void stream(HttpExchange ex) throws IOException {
+		String[] ids = new String[BATCH];
+		PackedSeq[] seqs = new PackedSeq[BATCH];
+		double[] score = new double[BATCH];
+		boolean[] isrRNA = new boolean[BATCH];
+		ex.getResponseHeaders().set("Content-Type",
+			"text/tab-separated-values; charset=utf-8");
+
+		Writer out = null;
+		try (FastaReader r = new FastaReader(ex.getRequestBody())) {
+			while (true) {
+				long t = Stats.start();
+				int n = 0;
+				while (n < BATCH && r.next()) {
+					ids[n] = id(r.header());
+					seqs[n++] = r.packed();
+				}
+				Stats.stop(Stats.Stage.PARSE, t, n, 0);
+				if (n > 0)
+					scorer.score(seqs, 0, n, score, isrRNA);
+
+				if (out == null) {
+					//the answer starts after the first batch (chunked), so
+					//errors of the first batch still get their status
+					ex.sendResponseHeaders(200, 0);
+					out = new BufferedWriter(new OutputStreamWriter(
+						ex.getResponseBody(), StandardCharsets.UTF_8));
+					out.write("#id\tscore"+(scoreOnly ? "" : "\tisrRNA")
+						+((calibration == null) ? "" : "\tevalue")+"\n");
+				}
+				if (n == 0)
+					break;
+
+				t = Stats.start();
+				for (int i = 0; i < n; i++)
+					out.write(ids[i]+"\t"+RNASequenceTrain.result(score[i],
+						isrRNA[i], scoreOnly, calibration, seqs[i].length(),
+						dbsize)+"\n");
+				out.flush();
+				Stats.stop(Stats.Stage.OUTPUT, t, n, 0);
+			}
+		} catch (IOException | RuntimeException e) {
+			//the scorer wraps the errors of its pool (e.g. an invalid
+			//character of a sequence), the innermost one is the reason
+			Throwable c = e;
+			while (c.getCause() != null)
+				c = c.getCause();
+			String msg = c.getMessage();
+			if (out == null) {
+				answer(ex, (c instanceof IOException
+					|| c instanceof IllegalArgumentException) ? 400 : 500, msg);
+				return;
+			}
+			//the status is already sent: the error as last line
+			try {
+				out.write("#error\t"+msg+"\n");
+			} catch (IOException f) {
+				//the client is gone
+				return;
+			}
+		}
+		out.close();
+	}
+
+
+
+	/** Id of a sequence: its header up to the first whitespace.*/
+	private static String id(String header) {
+		int k = 0;
+		while (k < header.length() && !Character.isWhitespace(header.charAt(k)))
+			k++;
+		return header.substring(0, k);
+	}
+
+
+
+	/** Sends a short text answer.*/
+	private static void answer(HttpExchange ex, int status, String text)
+			throws IOException {
+		byte[] b = (text+"\n").getBytes(StandardCharsets.UTF_8);
+		ex.getResponseHeaders().set("Content-Type",
+			"text/plain; charset=utf-8");
+		ex.sendResponseHeaders(status, b.length);
+		try (OutputStream os = ex.getResponseBody()) {
+			os.write(b);
+		}
+	}
+
+}
@@ -0,0 +1,89 @@
+/** Reusable buffer for a viterbi path: the states as codes in a byte array
+	(M, I & D like RNASequenceTrain.State.row). The tracebacks go from the end
+	of the path to its beginning, so the states are prepended: the buffer is
+	filled from the back and the path is states[start..capacity). The buffer
+	only grows, so the traceback of a worker does not allocate after the
+	longest path. Every prepended state is also counted in the statistics of
+	the path (see PathStats), so they are ready with the end of the traceback.
+	An object must not be shared between threads.*/
+final class StatePath {
+
+	//codes of the states
+	static final byte M = 0, I = 1, D = 2;
+
+	//the states of the path in states[start..states.length)
+	private byte[] states = new byte[0];
+	private int start;
+	//statistics of the path
+	private final PathStats stats = new PathStats();
+
+
+
+	/** Empties the path for a new traceback.
+		@param residues Length of the sequence
+		@param nodes Number of match nodes of the model (the path has at most
+			residues + nodes states)*/
+	void clear(int residues, int nodes) {
+		if (states.length < residues + nodes)
+			states = new byte[residues + nodes];
+		start = states.length;
+		stats.reset(residues, nodes);
+	}
+
+
+
+	/** Prepends a state to the path.
+		@param state Code of the state*/
+	void prepend(int state) {
+		states[--start] = (byte) state;
+		stats.add(state, 1);
+	}
+
+
+
+	/** Prepends n times the same state to the path (border of the matrix).
+		@param state Code of the state
+		@param n Number*/
+	void prepend(int state, int n) {
+		java.util.Arrays.fill(states, start - n, start, (byte) state);
+		start -= n;
+		stats.add(state, n);
+	}
+
+
+
+	/** Statistics of the path.*/
+	PathStats stats() {
+		return stats;
+	}
+
+
+
+	/** Number of states of the path.*/
+	int length() {
+		return states.length - start;
+	}
+
+
+
+	/** Code of the k-th state of the path (0 -> first one).*/
+	int get(int k) {
+		return states[start + k];
+	}
+
+
+
+	/** The path as text (for debugging), every state with its match node,
+		e.g. " I0 M1 D2 M3".*/
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		int j = 0;
+		for (int k = start; k < states.length; k++) {
+			if (states[k] != I)
+				j++;
+			sb.append(' ').append("MID".charAt(states[k])).append(j);
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,237 @@
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.*;
+import jdk.jfr.*;
+
+/** Instrumentation of the stages of a run: time, number of intervals and of
+	sequences per stage, the computed DP cells and the scored sequences. The
+	counters are LongAdders (no contention between the threads of the
+	BatchScorer), the times of stages that run in parallel are summed over
+	the threads. With enable() the counters are also readable over JMX (see
+	StatsMXBean) and every interval is a JFR event (StageEvent, only written
+	if a recording is running, e.g. java -XX:StartFlightRecording).
+	The stages are measured per sequence / batch and not per cell: a stage is
+	measured with
+		long t = Stats.start();
+		...
+		t = Stats.stop(Stats.Stage.X, t, sequences, cells);
+	When the instrumentation is not enabled, start() & stop(..) only read a
+	static field, so the overhead is negligible.*/
+final class Stats {
+
+	//the stages of a run
+	enum Stage {
+		PARSE,		//reading of the MSA, the testsequences or a model/counts
+		TRAIN,		//training, estimation out of counts, Baum-Welch
+		VITERBI,	//DP of the scoring (Viterbi / Forward, filters)
+		BACKTRACK,	//path & matchhit-method (or posterior decoding)
+		OUTPUT;		//printing of the results
+	}
+
+	//name of the MBean
+	static final String OBJECTNAME = "BioAlgo2:type=Stats";
+
+	//true -> the stages are measured
+	private static boolean enabled;
+
+	//per stage: time in ns, number of intervals & of sequences [ordinal]
+	private static final LongAdder[] nanos = adders(), calls = adders(),
+		items = adders();
+	//scored testsequences & DP cells (of all stages)
+	private static final LongAdder sequences = new LongAdder(),
+		cells = new LongAdder();
+	//start of the measurement (System.nanoTime())
+	private static volatile long startTime;
+
+
+
+	private Stats() {}
+
+
+
+	/** JFR event of one measured interval of a stage.*/
+	@Name("BioAlgo2.Stage")
+	@Label("Stage")
+	@Category("BioAlgo2")
+	@Description("One measured interval of a stage of RNASequenceTrain")
+	@StackTrace(false)
+	static final class StageEvent extends Event {
+		@Label("Stage")
+		String stage;
+		@Label("Sequences")
+		long sequences;
+		@Label("Cells")
+		long cells;
+		@Label("Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long time;
+	}
+
+
+
+	/** Implementation of the MBean.*/
+	private static final class Bean implements StatsMXBean {
+
+		public long getSequences() {
+			return sequences.sum();
+		}
+
+		public long getCells() {
+			return cells.sum();
+		}
+
+		public double getSequencesPerSecond() {
+			return sequences.sum() / seconds();
+		}
+
+		public double getGCUPS() {
+			return cells.sum() / seconds() / 1e9;
+		}
+
+		public Map<String, Long> getStageNanos() {
+			return map(nanos);
+		}
+
+		public Map<String, Long> getStageCalls() {
+			return map(calls);
+		}
+
+		public void reset() {
+			Stats.reset();
+		}
+	}
+
+
+
+	/** Switches the instrumentation on and registers the MBean (once).*/
+	static synchronized void enable() {
+		if (enabled)
+			return;
+		startTime = System.nanoTime();
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+				new Bean(), new ObjectName(OBJECTNAME));
+		} catch (JMException e) {
+			System.err.println("Warning: the statistics are not available "
+				+"over JMX ("+e+")");
+		}
+		enabled = true;
+	}
+
+
+
+	/** True, if the instrumentation is switched on.*/
+	static boolean isEnabled() {
+		return enabled;
+	}
+
+
+
+	/** Start of an interval: the time, if the instrumentation is on.*/
+	static long start() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+
+
+	/** End of an interval of a stage.
+		@param stage The stage
+		@param start Return value of start() (or stop(..)) at the beginning
+		@param n Number of sequences of the interval
+		@param c DP cells of the interval (the scoring & the rows that a
+			traceback with checkpoints calculates again)
+		@return The time at the end, the start of the next interval*/
+	static long stop(Stage stage, long start, long n, long c) {
+		if (!enabled)
+			return 0;
+		long now = System.nanoTime();
+		int s = stage.ordinal();
+		nanos[s].add(now - start);
+		calls[s].increment();
+		items[s].add(n);
+		if (stage == Stage.VITERBI)
+			sequences.add(n);
+		cells.add(c);
+
+		StageEvent e = new StageEvent();
+		if (e.isEnabled()) {
+			e.stage = stage.name();
+			e.sequences = n;
+			e.cells = c;
+			e.time = now - start;
+			e.commit();
+		}
+		return now;
+	}
+
+
+
+	/** Sets all counters to 0 and restarts the clock.*/
+	static void reset() {
+		for (Stage s : Stage.values()) {
+			nanos[s.ordinal()].reset();
+			calls[s.ordinal()].reset();
+			items[s.ordinal()].reset();
+		}
+		sequences.reset();
+		cells.reset();
+		startTime = System.nanoTime();
+	}
+
+
+
+	/** Summary of the counters (for --stats at the end of a run).*/
+	static String summary() {
+		double sec = seconds();
+		long n = sequences.sum(), c = cells.sum();
+		long total = 0;
+		for (LongAdder a : nanos)
+			total += a.sum();
+
+		StringBuilder b = new StringBuilder();
+		b.append(String.format("#Stats: %d sequences in %.3f s (%.1f "
+			+"sequences/s), %d cells (%.3f GCUPS, %.3f GCUPS per thread)%n",
+			n, sec, n / sec, c, c / sec / 1e9,
+			(nanos[Stage.VITERBI.ordinal()].sum() == 0) ? 0.0
+				: (double) c / nanos[Stage.VITERBI.ordinal()].sum()));
+		b.append(String.format("#  %-10s %10s %12s %12s %7s%n", "stage",
+			"intervals", "sequences", "time [ms]", "share"));
+		for (Stage s : Stage.values()) {
+			long t = nanos[s.ordinal()].sum();
+			b.append(String.format("#  %-10s %10d %12d %12.1f %6.1f%%%n",
+				s.name().toLowerCase(), calls[s.ordinal()].sum(),
+				items[s.ordinal()].sum(), t / 1e6,
+				(total == 0) ? 0.0 : 100.0 * t / total));
+		}
+		return b.toString();
+	}
+
+
+
+	/** Seconds since the start (at least 1 ns).*/
+	private static double seconds() {
+		return Math.max(1, System.nanoTime() - startTime) / 1e9;
+	}
+
+
+
+	/** Sums of the adders by the names of the stages.*/
+	private static Map<String, Long> map(LongAdder[] a) {
+		Map<String, Long> ret = new LinkedHashMap<String, Long>();
+		for (Stage s : Stage.values())
+			ret.put(s.name().toLowerCase(), a[s.ordinal()].sum());
+		return ret;
+	}
+
+
+
+	/** One adder per stage.*/
+	private static LongAdder[] adders() {
+		LongAdder[] ret = new LongAdder[Stage.values().length];
+		for (int i = 0; i < ret.length; i++)
+			ret[i] = new LongAdder();
+		return ret;
+	}
+
+}
@@ -0,0 +1,28 @@
+import java.util.Map;
+
+/** Management interface of the instrumentation (see Stats), registered as
+	"BioAlgo2:type=Stats" in the platform MBeanServer (e.g. for JConsole).*/
+public interface StatsMXBean {
+
+	/** Number of scored testsequences.*/
+	long getSequences();
+
+	/** Number of computed DP cells of the scoring (L * matnr per pass).*/
+	long getCells();
+
+	/** Scored testsequences per second since the start.*/
+	double getSequencesPerSecond();
+
+	/** Billion DP cells per second since the start (wall clock).*/
+	double getGCUPS();
+
+	/** Time of every stage in ns (summed over all threads).*/
+	Map<String, Long> getStageNanos();
+
+	/** Number of measured intervals of every stage.*/
+	Map<String, Long> getStageCalls();
+
+	/** Sets all counters to 0 and restarts the clock.*/
+	void reset();
+
+}
@@ -0,0 +1,144 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/** Streaming reader for MSAs in the (interleaved) Stockholm format:
+		# STOCKHOLM 1.0
+		#=GF ...			annotations (ignored)
+		name1   ACGU--AC
+		name2   AC-UG-AC
+							empty line between the blocks
+		name1   GGU...
+		//
+	The lines of the alignment are given out one after another with next():
+	the number of the sequence (order of the first appearance of its name)
+	and the part of the aligned sequence in this line (as bytes, reused for
+	the next line). So the rows of one sequence come in several parts, the
+	MSA is never in memory. Only the first alignment of the file is read.
+	An object must not be shared between threads.*/
+final class StockholmReader implements Closeable {
+
+	private final BufferedReader reader;
+
+	//numbers of the sequences by their names
+	private final HashMap<String, Integer> index =
+		new HashMap<String, Integer>();
+	private final ArrayList<String> names = new ArrayList<String>();
+
+	//the actual line: number of the sequence & part of the alignment
+	private int seqIndex;
+	private byte[] part = new byte[256];
+	private int len;
+	//true after the "//" line
+	private boolean end;
+
+
+
+	/** Opens the file and checks the header.
+		@param path Path to the Stockholm file*/
+	StockholmReader(String path) throws IOException {
+		reader = Files.newBufferedReader(Paths.get(path),
+			StandardCharsets.ISO_8859_1);
+		String line;
+		while ((line = reader.readLine()) != null && line.trim().isEmpty())
+			;
+		if (line == null || !line.startsWith("# STOCKHOLM")) {
+			reader.close();
+			throw new IOException(path+" is no Stockholm file");
+		}
+	}
+
+
+
+	/** True, if the file starts with the header of the Stockholm format.*/
+	static boolean isStockholm(String path) throws IOException {
+		try (BufferedReader r = Files.newBufferedReader(Paths.get(path),
+				StandardCharsets.ISO_8859_1)) {
+			String line;
+			while ((line = r.readLine()) != null && line.trim().isEmpty())
+				;
+			return line != null && line.startsWith("# STOCKHOLM");
+		}
+	}
+
+
+
+	/** Reads the next line of the alignment.
+		@return False at the end of the alignment*/
+	boolean next() throws IOException {
+		String line;
+		while (!end && (line = reader.readLine()) != null) {
+			String t = line.trim();
+			if (t.isEmpty() || t.startsWith("#"))
+				continue;		//end of a block or annotation
+			if (t.equals("//")) {
+				end = true;
+				break;
+			}
+
+			//name, whitespaces & the part of the sequence
+			int k = 0;
+			while (k < t.length() && !Character.isWhitespace(t.charAt(k)))
+				k++;
+			String name = t.substring(0, k);
+			Integer i = index.get(name);
+			if (i == null) {
+				i = names.size();
+				index.put(name, i);
+				names.add(name);
+			}
+			seqIndex = i;
+
+			len = 0;
+			for (; k < t.length(); k++) {
+				char c = t.charAt(k);
+				if (Character.isWhitespace(c))
+					continue;
+				if (len == part.length)
+					part = Arrays.copyOf(part, 2 * len);
+				part[len++] = (byte) c;
+			}
+			return true;
+		}
+		end = true;
+		return false;
+	}
+
+
+
+	/** Number of the sequence of the actual line.*/
+	int index() {
+		return seqIndex;
+	}
+
+
+
+	/** Part of the aligned sequence in the actual line (the first length()
+		bytes are valid), the buffer is reused for the next line.*/
+	byte[] part() {
+		return part;
+	}
+
+
+
+	/** Length of the part of the actual line.*/
+	int length() {
+		return len;
+	}
+
+
+
+	/** Names of the sequences in the order of their numbers.*/
+	List<String> names() {
+		return Collections.unmodifiableList(names);
+	}
+
+
+
+	/** Closes the file.*/
+	public void close() throws IOException {
+		reader.close();
+	}
+
+}
@@ -0,0 +1,180 @@
+import jdk.incubator.vector.*;
+
+/** Striped (Farrar) score-only Viterbi-Algorithm on the Java Vector API. The
+	match columns 1..matnr are distributed over the lanes of a vector: with
+	V lanes and Q = ceil(matnr / V) segments, column j = q + lane * Q + 1 lies
+	in segment q. So the dependency to column j - 1 is (apart from q = 0) in
+	the same lane of the segment before and M, I & D of one segment are
+	calculated in one go. The D->D dependency over the borders of the lanes is
+	fixed afterwards by the lazy-F loop.
+	The maxima of the scalar kernel are only selections and the additions have
+	the same operands, so the scores are bit-identical to ViterbiKernel.
+	Needs the module jdk.incubator.vector (java --add-modules
+	jdk.incubator.vector ...), see ViterbiWorker.isVectorAvailable().
+	An object must not be shared between threads.*/
+final class StripedViterbi {
+
+	//vector shape (preferred of the platform)
+	private final VectorSpecies<Double> species =
+		DoubleVector.SPECIES_PREFERRED;
+
+	//the trained model
+	private final PHMM model;
+	//number of lanes & segments
+	private final int V, Q;
+
+	//striped compiled model [q * V + lane], emissions [base * Q * V + ..]
+	private final double[] sMM, sIM, sDM, sMD, sID, sDD, sMI, sII, sDI;
+	private final double[] smsc, sisc;
+
+	//striped rows of vM, vI & vD (previous & actual)
+	private double[] pM, pI, pD, cM, cI, cD;
+
+
+
+	/** Creates the striped model and the rows for the given model.
+		@param model Trained PHMM*/
+	StripedViterbi(PHMM model) {
+		this.model = model;
+		V = species.length();
+		Q = Math.max(1, (model.matnr + V - 1) / V);
+
+		int n = Q * V;
+		sMM = stripe(model.tMM); sIM = stripe(model.tIM);
+		sDM = stripe(model.tDM); sMD = stripe(model.tMD);
+		sID = stripe(model.tID); sDD = stripe(model.tDD);
+		sMI = stripe(model.tMI); sII = stripe(model.tII);
+		sDI = stripe(model.tDI);
+
+		smsc = new double[4 * n];
+		sisc = new double[4 * n];
+		int cols = model.matnr + 1;
+		for (int x = 0; x < 4; x++) {
+			double[] m = new double[cols], ins = new double[cols];
+			System.arraycopy(model.msc, x * cols, m, 0, cols);
+			System.arraycopy(model.isc, x * cols, ins, 0, cols);
+			System.arraycopy(stripe(m), 0, smsc, x * n, n);
+			System.arraycopy(stripe(ins), 0, sisc, x * n, n);
+		}
+
+		pM = new double[n]; pI = new double[n]; pD = new double[n];
+		cM = new double[n]; cI = new double[n]; cD = new double[n];
+	}
+
+
+
+	/** Striped copy of an array over the columns 1..matnr, columns behind
+		matnr (padding) get -inf, so they never win a maximum.*/
+	private double[] stripe(double[] a) {
+		double[] ret = new double[Q * V];
+		for (int q = 0; q < Q; q++)
+			for (int lane = 0; lane < V; lane++) {
+				int j = q + lane * Q + 1;
+				ret[q * V + lane] = (j <= model.matnr) ? a[j]
+					: Double.NEGATIVE_INFINITY;
+			}
+		return ret;
+	}
+
+
+
+	/** Score-only viterbi algorithm for an encoded testsequence.
+		@param dsq Encoded testsequence (see PackedSeq.codes)
+		@param len Length of the testsequence
+		@return Score of the viterbi path (same as ViterbiWorker.score(..))*/
+	double score(byte[] dsq, int len) {
+		int n = Q * V, last = (Q - 1) * V;
+		double NEGINF = Double.NEGATIVE_INFINITY;
+		DoubleVector floor =
+			DoubleVector.broadcast(species, - Double.MAX_VALUE);
+
+		//row 0: vM -inf, vI 0, vD -inf (column 0 is a border value)
+		for (int k = 0; k < n; k++) {
+			pM[k] = NEGINF;
+			pI[k] = 0;
+			pD[k] = NEGINF;
+		}
+		double bM = 0, bI = NEGINF, bD = NEGINF;	//column 0 of the prev. row
+
+		for (int i = 1; i <= len; i++) {
+			int eoff = dsq[i-1] * n;
+
+			//1. vM & vI, they only need the previous row
+			//   (column j - 1 of segment 0 is the last segment shifted by one)
+			DoubleVector mv = DoubleVector.fromArray(species, pM, last)
+				.unslice(1).withLane(0, bM);
+			DoubleVector iv = DoubleVector.fromArray(species, pI, last)
+				.unslice(1).withLane(0, bI);
+			DoubleVector dv = DoubleVector.fromArray(species, pD, last)
+				.unslice(1).withLane(0, bD);
+
+			for (int q = 0, k = 0; q < Q; q++, k += V) {
+				DoubleVector m = floor
+					.max(mv.add(DoubleVector.fromArray(species, sMM, k)))
+					.max(iv.add(DoubleVector.fromArray(species, sIM, k)))
+					.max(dv.add(DoubleVector.fromArray(species, sDM, k)));
+				DoubleVector.fromArray(species, smsc, eoff + k).add(m)
+					.intoArray(cM, k);
+
+				mv = DoubleVector.fromArray(species, pM, k);
+				iv = DoubleVector.fromArray(species, pI, k);
+				dv = DoubleVector.fromArray(species, pD, k);
+				DoubleVector ins = floor
+					.max(mv.add(DoubleVector.fromArray(species, sMI, k)))
+					.max(iv.add(DoubleVector.fromArray(species, sII, k)))
+					.max(dv.add(DoubleVector.fromArray(species, sDI, k)));
+				DoubleVector.fromArray(species, sisc, eoff + k).add(ins)
+					.intoArray(cI, k);
+			}
+
+			//2. vD out of vM & vI of this row, D->D only inside of the lanes
+			//   (column 0: vM = vI = -inf, vD = 0)
+			mv = DoubleVector.fromArray(species, cM, last).unslice(1)
+				.withLane(0, NEGINF);
+			iv = DoubleVector.fromArray(species, cI, last).unslice(1)
+				.withLane(0, NEGINF);
+			DoubleVector d = DoubleVector.broadcast(species, NEGINF)
+				.withLane(0, 0);
+			for (int q = 0, k = 0; q < Q; q++, k += V) {
+				d = floor
+					.max(mv.add(DoubleVector.fromArray(species, sMD, k)))
+					.max(iv.add(DoubleVector.fromArray(species, sID, k)))
+					.max(d.add(DoubleVector.fromArray(species, sDD, k)));
+				d.intoArray(cD, k);
+				mv = DoubleVector.fromArray(species, cM, k);
+				iv = DoubleVector.fromArray(species, cI, k);
+			}
+
+			//3. lazy-F: carry D->D into the next lane, as long as it improves
+			//   something (lane 0 got column 0 already)
+			boolean changed = true;
+			while (changed) {
+				changed = false;
+				d = d.unslice(1).withLane(0, NEGINF);
+				for (int q = 0, k = 0; q < Q; q++, k += V) {
+					DoubleVector old = DoubleVector.fromArray(species, cD, k);
+					DoubleVector cand =
+						d.add(DoubleVector.fromArray(species, sDD, k));
+					if (!cand.compare(VectorOperators.GT, old).anyTrue())
+						break;
+					d = old.max(cand);
+					d.intoArray(cD, k);
+					if (q == Q - 1)
+						changed = true;
+				}
+			}
+
+			//swap rows
+			double[] t;
+			t = pM; pM = cM; cM = t;
+			t = pI; pI = cI; cI = t;
+			t = pD; pD = cD; cD = t;
+			bM = NEGINF; bI = NEGINF; bD = 0;
+		}
+
+		//termination: vM at column matnr
+		int k = model.matnr - 1;
+		return pM[(k % Q) * V + k / Q];
+	}
+
+}
@@ -0,0 +1,184 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.IntStream;
+
+/** Sweep of the thresholds of the matchhit-method: the viterbi path of every
+	testsequence is calculated only once and reduced to a compact summary
+	(length, number of matchhits & of chains, 12 bytes per sequence), out of
+	which Q and L of the matchhit-method follow for any thresholds. So a
+	whole grid of (qthr, lthr) is evaluated in parallel without a new viterbi
+	run: per grid point the number of accepted sequences and, if the labels
+	of the sequences are known, the true positives, precision & recall.*/
+final class ThresholdSweep {
+
+	//default grids of the thresholds (from:to:step)
+	static final String QGRID = "0.5:1:0.05", LGRID = "1:10:1";
+	//line of the output of RNASequenceTrain in front of the results
+	static final String RUN_MARKER = "Testingsequences:";
+
+	//per sequence: length, number of matchhits & of chains
+	private int[] residues = new int[1024], hits = new int[1024],
+		chains = new int[1024];
+	//number of sequences
+	private int n;
+
+
+
+	/** Adds the summary of the path of the next sequence.
+		@param residues Length of the sequence
+		@param hits Number of matchhits of its viterbi path
+		@param chains Number of chains of matchhits*/
+	void add(int residues, int hits, int chains) {
+		if (n == this.residues.length) {
+			this.residues = Arrays.copyOf(this.residues, 2 * n);
+			this.hits = Arrays.copyOf(this.hits, 2 * n);
+			this.chains = Arrays.copyOf(this.chains, 2 * n);
+		}
+		this.residues[n] = residues;
+		this.hits[n] = hits;
+		this.chains[n] = chains;
+		n++;
+	}
+
+
+
+	/** Number of sequences.*/
+	int size() {
+		return n;
+	}
+
+
+
+	/** Values of a grid "from:to:step" (to inclusive) or a single value.
+		@param spec Grid
+		@return The values in increasing order*/
+	static double[] grid(String spec) {
+		String[] p = spec.split(":");
+		try {
+			if (p.length == 1)
+				return new double[] {Double.parseDouble(p[0])};
+			if (p.length == 3) {
+				double from = Double.parseDouble(p[0]);
+				double to = Double.parseDouble(p[1]);
+				double step = Double.parseDouble(p[2]);
+				if (step > 0 && from <= to) {
+					//small tolerance, so "to" is part of the grid
+					int k = (int) Math.floor((to - from) / step + 1e-9) + 1;
+					double[] ret = new double[k];
+					//rounded, so 0.1 + 2 * 0.1 is 0.3 again
+					for (int i = 0; i < k; i++)
+						ret[i] = Math.rint((from + i * step) * 1e10) / 1e10;
+					return ret;
+				}
+			}
+		} catch (NumberFormatException e) {
+			//error below
+		}
+		throw new IllegalArgumentException("A grid must be from:to:step "
+			+"(from <= to, step > 0) or a single value and not "+spec);
+	}
+
+
+
+	/** Reads the labels of the testsequences: one line per sequence (in the
+		order of the file), the last word of the line is 1 (rRNA) or 0
+		(Non-rRNA). Empty lines & lines starting with # are skipped. Also the
+		output of a run of RNASequenceTrain can be used: if the file has a line
+		"Testingsequences:", everything up to it (the messages of the training)
+		is skipped and the label is the decision, the second word of the line
+		(an E-value may follow).
+		@param path Path to the file with the labels
+		@return Labels of the sequences*/
+	static boolean[] labels(String path) throws IOException {
+		List<String> lines = java.nio.file.Files.readAllLines(
+			java.nio.file.Paths.get(path));
+		int first = lines.indexOf(RUN_MARKER) + 1;
+		boolean run = (first > 0);
+
+		boolean[] ret = new boolean[1024];
+		int k = 0;
+		for (int line = first; line < lines.size(); line++) {
+			String s = lines.get(line).trim();
+			if (s.isEmpty() || s.startsWith("#"))
+				continue;
+			String[] w = s.split("\\s+");
+			String label = (run && w.length > 1) ? w[1] : w[w.length - 1];
+			if (!label.equals("0") && !label.equals("1"))
+				throw new IllegalArgumentException("The label in line "
+					+(line + 1)+" of "+path+" must be 0 or 1 and not "+label);
+			if (k == ret.length)
+				ret = Arrays.copyOf(ret, 2 * k);
+			ret[k++] = label.equals("1");
+		}
+		return Arrays.copyOf(ret, k);
+	}
+
+
+
+	/** Evaluates the grid in parallel and prints one line per grid point:
+		qthr, lthr, accepted sequences and with labels the true positives,
+		false positives, false negatives, precision & recall (NaN, if not
+		defined).
+		@param q Thresholds for Q
+		@param l Thresholds for L
+		@param labels Labels of the sequences (null -> unknown)
+		@param pool Pool for the evaluation
+		@param out Stream for the table*/
+	void report(double[] q, double[] l, boolean[] labels, ForkJoinPool pool,
+			PrintStream out) {
+		if (labels != null && labels.length != n)
+			throw new IllegalArgumentException("There are "+labels.length
+				+" labels for "+n+" sequences");
+
+		//Q & L of every sequence (same values as PathStats.q() & l())
+		double[] sq = new double[n], sl = new double[n];
+		for (int i = 0; i < n; i++) {
+			sq[i] = (double) hits[i] / residues[i];
+			sl[i] = (double) hits[i] / chains[i];
+		}
+
+		//per grid point (qthr index * l.length + lthr index): accepted &
+		//true positives
+		int points = q.length * l.length;
+		long[] accepted = new long[points], tp = new long[points];
+		Runnable task = () -> IntStream.range(0, points).parallel()
+			.forEach(p -> {
+				double qthr = q[p / l.length], lthr = l[p % l.length];
+				long a = 0, t = 0;
+				for (int i = 0; i < n; i++)
+					if (sq[i] >= qthr && sl[i] >= lthr) {
+						a++;
+						if (labels != null && labels[i])
+							t++;
+					}
+				accepted[p] = a;
+				tp[p] = t;
+			});
+		BatchScorer.await(pool, task, "The sweep");
+
+		long positives = 0;
+		if (labels != null)
+			for (boolean b : labels)
+				if (b)
+					positives++;
+
+		out.println("#Sweep of "+n+" sequences"+((labels == null) ? ""
+			: " ("+positives+" rRNA)"));
+		out.println("#qthr\tlthr\taccepted"+((labels == null) ? ""
+			: "\ttp\tfp\tfn\tprecision\trecall"));
+		for (int p = 0; p < points; p++) {
+			StringBuilder b = new StringBuilder();
+			b.append(q[p / l.length]).append('\t').append(l[p % l.length])
+				.append('\t').append(accepted[p]);
+			if (labels != null)
+				b.append('\t').append(tp[p])
+					.append('\t').append(accepted[p] - tp[p])
+					.append('\t').append(positives - tp[p])
+					.append('\t').append((double) tp[p] / accepted[p])
+					.append('\t').append((double) tp[p] / positives);
+			out.println(b);
+		}
+	}
+
+}
@@ -0,0 +1,210 @@
+/** The recurrence of the Viterbi-Algorithm for the PHMM, one row (character of
+	the testsequence) at a time. It works on the compiled model (see PHMM) and is
+	shared by all viterbi modes (full matrices, checkpoints, ...), so they all
+	compute exactly the same values.*/
+final class ViterbiKernel {
+
+	//the traceback of a cell is one byte: the previous state (code of
+	//StatePath) of vM in the bits 0-1, of vI in 2-3 and of vD in 4-5, so
+	//the previous state of state s is (bt >> shift(s)) & 3
+	static final int MASK = 3;
+
+
+
+	private ViterbiKernel() {}
+
+
+
+	/** Initializes row 0 of the viterbi matrices: starting here log(1.0) = 0,
+		first row -inf (for vI it is 0 apart from column 0).*/
+	static void firstRow(int matnr, double[] cM, double[] cI, double[] cD) {
+		cM[0] = 0;
+		cI[0] = Double.NEGATIVE_INFINITY;
+		cD[0] = Double.NEGATIVE_INFINITY;
+		for (int j = 1; j <= matnr; j++) {
+			cM[j] = Double.NEGATIVE_INFINITY;
+			cI[j] = 0;
+			cD[j] = Double.NEGATIVE_INFINITY;
+		}
+	}
+
+
+
+	/** Calculates one row i > 0 of the viterbi matrices out of row i - 1.
+		@param model Compiled model
+		@param x Code of the i-th character of the testsequence
+		@param pM Row i - 1 of vM (pI, pD analog)
+		@param cM Row i of vM, will be calculated (cI, cD analog)
+		@param bt Row i of the traceback, will be calculated*/
+	static void row(PHMM model, int x, double[] pM, double[] pI, double[] pD,
+			double[] cM, double[] cI, double[] cD, byte[] bt) {
+		int matnr = model.matnr;
+		double[] tMM = model.tMM, tIM = model.tIM, tDM = model.tDM;
+		double[] tMD = model.tMD, tID = model.tID, tDD = model.tDD;
+		double[] tMI = model.tMI, tII = model.tII, tDI = model.tDI;
+		double[] msc = model.msc, isc = model.isc;
+		int off = x * (matnr + 1);		//emissions of the i-th base
+
+		//first column -inf (vD is 0 there)
+		cM[0] = Double.NEGATIVE_INFINITY;
+		cI[0] = Double.NEGATIVE_INFINITY;
+		cD[0] = 0;
+
+		for (int j = 1; j <= matnr; j++) {
+			double maximum, s;
+			int d, b;
+
+			//vM: max. over the three predecessors & emission
+			//(-Double.MAX_VALUE as start & first maximum wins)
+			maximum = - Double.MAX_VALUE; d = StatePath.M;
+			s = pM[j-1] + tMM[j];
+			if (maximum < s) { maximum = s; }
+			s = pI[j-1] + tIM[j];
+			if (maximum < s) { maximum = s; d = StatePath.I; }
+			s = pD[j-1] + tDM[j];
+			if (maximum < s) { maximum = s; d = StatePath.D; }
+			cM[j] = msc[off + j] + maximum;
+			b = d;
+
+			//vI
+			maximum = - Double.MAX_VALUE; d = StatePath.M;
+			s = pM[j] + tMI[j];
+			if (maximum < s) { maximum = s; }
+			s = pI[j] + tII[j];
+			if (maximum < s) { maximum = s; d = StatePath.I; }
+			s = pD[j] + tDI[j];
+			if (maximum < s) { maximum = s; d = StatePath.D; }
+			cI[j] = isc[off + j] + maximum;
+			b |= d << 2;
+
+			//vD: delete is 'silent' -> no emissionprobability
+			maximum = - Double.MAX_VALUE; d = StatePath.M;
+			s = cM[j-1] + tMD[j];
+			if (maximum < s) { maximum = s; }
+			s = cI[j-1] + tID[j];
+			if (maximum < s) { maximum = s; d = StatePath.I; }
+			s = cD[j-1] + tDD[j];
+			if (maximum < s) { maximum = s; d = StatePath.D; }
+			cD[j] = maximum;
+			bt[j] = (byte) (b | d << 4);
+		}
+	}
+
+
+
+	/** Calculates one row i > 0 of the viterbi matrices out of row i - 1 like
+		row(..), but without the directions for the backtracking (score-only).
+		@param model Compiled model
+		@param x Code of the i-th character of the testsequence
+		@param pM Row i - 1 of vM (pI, pD analog)
+		@param cM Row i of vM, will be calculated (cI, cD analog)*/
+	static void scoreRow(PHMM model, int x, double[] pM, double[] pI,
+			double[] pD, double[] cM, double[] cI, double[] cD) {
+		int matnr = model.matnr;
+		double[] tMM = model.tMM, tIM = model.tIM, tDM = model.tDM;
+		double[] tMD = model.tMD, tID = model.tID, tDD = model.tDD;
+		double[] tMI = model.tMI, tII = model.tII, tDI = model.tDI;
+		double[] msc = model.msc, isc = model.isc;
+		int off = x * (matnr + 1);		//emissions of the i-th base
+
+		//first column -inf (vD is 0 there)
+		cM[0] = Double.NEGATIVE_INFINITY;
+		cI[0] = Double.NEGATIVE_INFINITY;
+		cD[0] = 0;
+
+		//same order of the comparisons as in row(..) -> same values
+		for (int j = 1; j <= matnr; j++) {
+			double maximum, s;
+
+			maximum = - Double.MAX_VALUE;
+			s = pM[j-1] + tMM[j];
+			if (maximum < s) maximum = s;
+			s = pI[j-1] + tIM[j];
+			if (maximum < s) maximum = s;
+			s = pD[j-1] + tDM[j];
+			if (maximum < s) maximum = s;
+			cM[j] = msc[off + j] + maximum;
+
+			maximum = - Double.MAX_VALUE;
+			s = pM[j] + tMI[j];
+			if (maximum < s) maximum = s;
+			s = pI[j] + tII[j];
+			if (maximum < s) maximum = s;
+			s = pD[j] + tDI[j];
+			if (maximum < s) maximum = s;
+			cI[j] = isc[off + j] + maximum;
+
+			maximum = - Double.MAX_VALUE;
+			s = cM[j-1] + tMD[j];
+			if (maximum < s) maximum = s;
+			s = cI[j-1] + tID[j];
+			if (maximum < s) maximum = s;
+			s = cD[j-1] + tDD[j];
+			if (maximum < s) maximum = s;
+			cD[j] = maximum;
+		}
+	}
+
+
+
+	/** MSV filter score: the best ungapped alignment of a segment of the
+		sequence to a segment of the match states (diagonal, no inserts &
+		deletes), scored with the log-odds against the uniform background.
+		@param model Compiled model
+		@param dsq Encoded testsequence
+		@param len Length of the testsequence
+		@param h Row for the dynamic programming (at least matnr + 1 long)
+		@param diag Array for the diagonal (j - i) of the best segment at index
+			0 (may be null), matnr - len if there is no positive segment
+		@return Best log-odds score of a diagonal segment (at least 0)*/
+	static double msv(PHMM model, byte[] dsq, int len, double[] h,
+			int[] diag) {
+		int matnr = model.matnr, cols = matnr + 1;
+		double[] mlod = model.mlod;
+		double best = 0;
+		int bestdiag = matnr - len;
+
+		java.util.Arrays.fill(h, 0, cols, 0);
+		for (int i = 1; i <= len; i++) {
+			int off = dsq[i-1] * cols;
+			//h[j] = max(h[j-1] of the previous row, 0) + log-odds, from right
+			//to left so h[j-1] is still the one of the previous row
+			for (int j = matnr; j >= 1; j--) {
+				double v = Math.max(h[j-1], 0) + mlod[off + j];
+				h[j] = v;
+				if (best < v) {
+					best = v;
+					bestdiag = j - i;
+				}
+			}
+		}
+
+		if (diag != null)
+			diag[0] = bestdiag;
+		return best;
+	}
+
+
+
+	/** Get the terminating state (code of StatePath) out of the values at the
+		last column of the last row.*/
+	static int terminalState(double m, double i, double d) {
+		if (m >= i && m >= d)
+			return StatePath.M;
+		else if (i >= d)
+			return StatePath.I;
+		else
+			return StatePath.D;
+	}
+
+
+
+	/** The previous state of a state out of its traceback byte.
+		@param bt Traceback of the cell
+		@param state Code of the state (see StatePath)
+		@return Code of the previous state*/
+	static int previous(byte bt, int state) {
+		return (bt >> (2 * state)) & MASK;
+	}
+
+}
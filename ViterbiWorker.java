@@ -0,0 +1,656 @@
+import java.util.*;
+
+/** Scratch space of one thread for the Viterbi-Algorithm of a PHMM. The
+	matrices for the viterbi variables and the backtracking are reused for the
+	next testsequence and only grow, if a longer sequence has to be tested.
+	Sequences with more than maxCells cells in the matrices are processed with
+	checkpoints (see CheckpointViterbi) to bound the memory. The model can be
+	switched (setModel), so one worker serves a library of models with the
+	same scratch space (the rows are as wide as the largest model).
+	A worker must not be shared between threads, but any number of workers can
+	share one (immutable) PHMM.*/
+final class ViterbiWorker {
+
+	//memory of one cell of the full matrices (3 doubles & the traceback)
+	static final long BYTES_PER_CELL = 3 * 8 + 1;
+	//default for maxCells: about 400 MB for the full matrices
+	static final long DEFAULT_MAXCELLS = 1L << 23;
+
+
+	//the trained model (see setModel)
+	private PHMM model;
+	//maximal number of cells of the full matrices
+	private final long maxCells;
+	//scratch space for long sequences (created when needed)
+	private CheckpointViterbi checkpoint;
+	//true, if the last sequence was processed with checkpoints
+	private boolean useCheckpoint;
+	//banded viterbi algorithm for the full mode (null -> not banded) and
+	//its band width
+	private BandedViterbi banded;
+	private int band;
+	//true, if the last sequence was processed with the band
+	private boolean useBand;
+	//cells of the band for the last sequence, if it was declined (MSV)
+	private long declined;
+
+	//kernels for the score-only mode
+	enum Kernel {
+		SCALAR, STRIPED, INTERSEQ;		//INTERSEQ: several sequences at once
+	}
+	//striped SIMD kernel for the score-only mode (null -> scalar kernel)
+	private StripedViterbi striped;
+	//SIMD kernel for several sequences at once (null if not used)
+	private InterSeqViterbi interseq;
+	//encoded sequences of the lanes of interseq
+	private byte[][] lanedsq;
+	private int[] lanelen;
+	private double[] lanescore;
+
+	//matrices for dynamic programming of viterbi variables
+	private double[][] vM, vI, vD;
+	//traceback of the three matrices, one byte per cell (see ViterbiKernel)
+	private byte[][] bt;
+	//the path of the last backtracking
+	private final StatePath path = new StatePath();
+
+	//two rows each for the score-only mode
+	private double[] sM0, sI0, sD0, sM1, sI1, sD1;
+
+	//checkpoints of the forward rows for posterior(..) of long sequences
+	private double[][] cpM, cpI, cpD;
+	//posterior match probabilities of the last posterior(..) and their
+	//number (-1 -> there are none)
+	private double[] post = new double[0];
+	private int postLen = -1;
+
+	//the sequence that is tested at the moment, encoded (see PackedSeq.codes)
+	private byte[] dsq = new byte[0];
+	//length of this sequence and the score of its viterbi path
+	private int len;
+	private double score;
+
+
+
+	/** Creates a worker for the given model.
+		@param model Trained PHMM*/
+	ViterbiWorker(PHMM model) {
+		this(model, DEFAULT_MAXCELLS);
+	}
+
+
+
+	/** Creates a worker for the given model.
+		@param model Trained PHMM
+		@param maxCells Sequences with more cells ((L+1)*(matnr+1)) in the
+			viterbi matrices are processed with checkpoints (0 = always)*/
+	ViterbiWorker(PHMM model, long maxCells) {
+		this(model, maxCells, Kernel.SCALAR);
+	}
+
+
+
+	/** Creates a worker for the given model.
+		@param model Trained PHMM
+		@param maxCells Sequences with more cells ((L+1)*(matnr+1)) in the
+			viterbi matrices are processed with checkpoints (0 = always)
+		@param kernel Kernel of the score-only mode (STRIPED & INTERSEQ
+			need isVectorAvailable())*/
+	ViterbiWorker(PHMM model, long maxCells, Kernel kernel) {
+		this.model = model;
+		this.maxCells = maxCells;
+		if (kernel == Kernel.STRIPED)
+			striped = new StripedViterbi(model);
+		else if (kernel == Kernel.INTERSEQ) {
+			interseq = new InterSeqViterbi(model);
+			lanedsq = new byte[interseq.V][0];
+			lanelen = new int[interseq.V];
+			lanescore = new double[interseq.V];
+		}
+	}
+
+
+
+	/** Checks whether the Vector API for the SIMD kernels is available in
+		this JVM (not in StripedViterbi, that class can not even be loaded
+		without it).*/
+	static boolean isVectorAvailable() {
+		return ModuleLayer.boot().findModule("jdk.incubator.vector")
+			.isPresent();
+	}
+
+
+
+	/** Switches the banded viterbi algorithm (see BandedViterbi) for
+		processViterbi(..) on: fragments with a band of at most maxCells
+		cells, the other sequences like without it.
+		@param band Band width (0 -> automatic)*/
+	void setBand(int band) {
+		this.band = band;
+		banded = new BandedViterbi(model, band, maxCells);
+	}
+
+
+
+	/** Switches the worker to another model: the matrices, rows & buffers
+		are kept (they only grow for a model with more match nodes), the
+		kernels are created again for the new model. No backtracking of the
+		last sequence is possible afterwards.
+		@param m Trained PHMM*/
+	void setModel(PHMM m) {
+		if (m == model)
+			return;
+		model = m;
+		checkpoint = null;		//created again when needed
+		if (banded != null)
+			banded = new BandedViterbi(m, band, maxCells);
+		if (striped != null)
+			striped = new StripedViterbi(m);
+		if (interseq != null)
+			interseq = new InterSeqViterbi(m);
+		useCheckpoint = useBand = false;
+		len = -1;
+		postLen = -1;
+	}
+
+
+
+	/** Makes sure, that the matrices have at least the given number of rows
+		(of at least matnr + 1 columns). Rows that already exist are kept, if
+		they are wide enough.*/
+	private void ensureRows(int rows) {
+		int cols = 1 + model.matnr;
+		if (vM != null && vM[0].length < cols)
+			vM = null;		//model with more match nodes -> new rows
+		if (vM != null && vM.length >= rows)
+			return;
+
+		int old = (vM == null) ? 0 : vM.length;
+		vM = (old == 0) ? new double[rows][] : Arrays.copyOf(vM, rows);
+		vI = (old == 0) ? new double[rows][] : Arrays.copyOf(vI, rows);
+		vD = (old == 0) ? new double[rows][] : Arrays.copyOf(vD, rows);
+		bt = (old == 0) ? new byte[rows][] : Arrays.copyOf(bt, rows);
+
+		for (int i = old; i < rows; i++) {
+			vM[i] = new double[cols];
+			vI[i] = new double[cols];
+			vD[i] = new double[cols];
+			bt[i] = new byte[cols];
+		}
+	}
+
+
+
+	/** Process the viterbi algorithm for a testsequence. The matrices are kept
+		until the next call, so matchhitThreshold(..) can backtrack the path.
+		@param seq The testsequence
+		@return Score of the viterbi path*/
+	double processViterbi(PackedSeq seq) {
+		int l = seq.length();
+		if (dsq.length < l)
+			dsq = new byte[l];
+		seq.codes(dsq);
+		return processViterbi(dsq, l);
+	}
+
+
+
+	/** Process the viterbi algorithm for an encoded testsequence (see
+		PackedSeq.codes), e.g. one that is shared by the workers of several
+		models. It is only read and must not change until matchhitThreshold(..)
+		is done.
+		@param codes The encoded testsequence
+		@param l Length of the testsequence
+		@return Score of the viterbi path*/
+	double processViterbi(byte[] codes, int l) {
+		byte[] dsq = codes;
+		len = l;
+
+		int lengthOfSequence = len;
+		int matnr = model.matnr;
+
+		//fragment in a band? (else declined -> full matrices/checkpoints)
+		useBand = false;
+		declined = 0;
+		if (banded != null) {
+			score = banded.processViterbi(dsq, lengthOfSequence);
+			useBand = !Double.isNaN(score);
+			if (useBand) {
+				useCheckpoint = false;
+				return score;
+			}
+			declined = banded.cells();
+		}
+
+		//too long for the full matrices?
+		useCheckpoint = (long) (lengthOfSequence + 1) * (matnr + 1) > maxCells;
+		if (useCheckpoint) {
+			if (checkpoint == null)
+				checkpoint = new CheckpointViterbi(model);
+			return score = checkpoint.processViterbi(dsq, lengthOfSequence);
+		}
+
+		ensureRows(1 + lengthOfSequence);
+
+		ViterbiKernel.firstRow(matnr, vM[0], vI[0], vD[0]);
+		for (int i = 1; i <= lengthOfSequence; i++)
+			ViterbiKernel.row(model, dsq[i-1], vM[i-1], vI[i-1], vD[i-1],
+				vM[i], vI[i], vD[i], bt[i]);
+
+
+		//termination
+		return score = vM[lengthOfSequence][matnr];
+	}
+
+
+
+	/** Process the viterbi algorithm for a testsequence, but only the score
+		(no backtracking is possible afterwards). Only two rows of each matrix
+		are kept and reused for the next sequence.
+		@param seq The testsequence
+		@return Score of the viterbi path (same as processViterbi(seq))*/
+	double score(PackedSeq seq) {
+		len = seq.length();
+		if (dsq.length < len)
+			dsq = new byte[len];
+		seq.codes(dsq);
+
+		//the path can not be backtracked
+		useCheckpoint = useBand = false;
+		int matnr = model.matnr, l = len;
+		len = -1;
+
+		if (striped != null)
+			return striped.score(dsq, l);
+
+		ensureScoreRows();
+
+		double[] pM = sM0, pI = sI0, pD = sD0, cM = sM1, cI = sI1, cD = sD1, t;
+		ViterbiKernel.firstRow(matnr, pM, pI, pD);
+		for (int i = 1; i <= l; i++) {
+			ViterbiKernel.scoreRow(model, dsq[i-1], pM, pI, pD, cM, cI, cD);
+
+			//swap rows
+			t = pM; pM = cM; cM = t;
+			t = pI; pI = cI; cI = t;
+			t = pD; pD = cD; cD = t;
+		}
+
+		//termination
+		return pM[matnr];
+	}
+
+
+
+	/** Makes sure, that the two rows of each matrix of the score-only mode
+		exist.*/
+	private void ensureScoreRows() {
+		int cols = model.matnr + 1;
+		if (sI0 == null || sI0.length < cols) {
+			sM0 = new double[cols]; sI0 = new double[cols];
+			sD0 = new double[cols]; sM1 = new double[cols];
+			sI1 = new double[cols]; sD1 = new double[cols];
+		}
+	}
+
+
+
+	/** Forward score of a testsequence: logarithmized sum over all paths of
+		the viterbi lattice (see ForwardKernel) instead of the best one. Only
+		two rows of each matrix are used, no backtracking is possible
+		afterwards.
+		@param seq The testsequence
+		@return Forward score (at least the viterbi score)*/
+	double forward(PackedSeq seq) {
+		int l = encode(seq);
+		int matnr = model.matnr;
+		ensureScoreRows();
+
+		double[] pM = sM0, pI = sI0, pD = sD0, cM = sM1, cI = sI1, cD = sD1, t;
+		ViterbiKernel.firstRow(matnr, pM, pI, pD);
+		for (int i = 1; i <= l; i++) {
+			ForwardKernel.row(model, dsq[i-1], pM, pI, pD, cM, cI, cD);
+
+			t = pM; pM = cM; cM = t;
+			t = pI; pI = cI; cI = t;
+			t = pD; pD = cD; cD = t;
+		}
+
+		return pM[matnr];
+	}
+
+
+
+	/** Posterior decoding of a testsequence: Forward- & Backward-Algorithm,
+		the probability that character i is emitted by a match state is
+		saved (see posteriors()). The forward rows are kept in the viterbi
+		matrices; if they need more than maxCells cells, only every k-th row
+		(k = ceil(sqrt(L+1))) is saved and the rows between are calculated
+		again in the backward pass (like CheckpointViterbi). No viterbi
+		backtracking is possible afterwards.
+		@param seq The testsequence
+		@return Forward score (see forward(seq))*/
+	double posterior(PackedSeq seq) {
+		int l = encode(seq);
+		int matnr = model.matnr, cols = matnr + 1;
+		ensureScoreRows();
+		if (post.length < l)
+			post = new double[l];
+		postLen = l;
+
+		//full forward matrices or checkpoints & segments of k rows
+		boolean full = (long) (l + 1) * cols <= maxCells;
+		int k = full ? l + 1 : Math.max(1, (int) Math.ceil(Math.sqrt(l + 1)));
+		ensureRows(Math.max(2, k));
+		if (!full && (cpM == null || cpM.length < l / k + 1
+				|| cpM[0].length < cols)) {
+			cpM = new double[l / k + 1][cols];
+			cpI = new double[l / k + 1][cols];
+			cpD = new double[l / k + 1][cols];
+		}
+
+		//forward pass
+		double[] pM = vM[0], pI = vI[0], pD = vD[0], cM, cI, cD;
+		ViterbiKernel.firstRow(matnr, pM, pI, pD);
+		if (!full)
+			saveCheckpoint(0, pM, pI, pD);
+		for (int i = 1; i <= l; i++) {
+			int r = full ? i : (i & 1);
+			cM = vM[r]; cI = vI[r]; cD = vD[r];
+			ForwardKernel.row(model, dsq[i-1], pM, pI, pD, cM, cI, cD);
+			if (!full && i % k == 0)
+				saveCheckpoint(i / k, cM, cI, cD);
+			pM = cM; pI = cI; pD = cD;
+		}
+		double score = pM[matnr];
+		if (score == Double.NEGATIVE_INFINITY) {
+			Arrays.fill(post, 0, l, 0);
+			return score;
+		}
+
+		//backward pass, segment by segment from the end
+		double[] nM = sM0, nI = sI0, nD = sD0, t;
+		cM = sM1; cI = sI1; cD = sD1;
+		for (int start = (l / k) * k; start >= 0; start -= k) {
+			int end = Math.min(start + k - 1, l);
+			if (!full)
+				segment(start, end, k);
+
+			for (int i = end; i >= start; i--) {
+				if (i == l)
+					ForwardKernel.lastRow(matnr, cM, cI, cD);
+				else
+					ForwardKernel.backRow(model, dsq[i], i == 0, nM, nI, cM,
+						cI, cD);
+				if (i > 0)
+					post[i-1] = ForwardKernel.matchPosterior(vM[i - start],
+						cM, score, matnr);
+
+				t = nM; nM = cM; cM = t;
+				t = nI; nI = cI; cI = t;
+				t = nD; nD = cD; cD = t;
+			}
+		}
+
+		return score;
+	}
+
+
+
+	/** Posterior match probabilities of the last posterior(..), the first L
+		values are valid (the array is reused for the next sequence).*/
+	double[] posteriors() {
+		return post;
+	}
+
+
+
+	/** The "matchhit-method" with the posteriors of the last posterior(..)
+		instead of the viterbi path (posterior decoding): Q is the expected
+		part of the characters that are emitted by match states, L the mean
+		length of the chains of characters with a match posterior of at least
+		0.5.
+		@param qthr Threshold for Q
+		@param lthr Threshold for L
+		@return True, if (Q >= qthr && L >= lthr) --> rRNA*/
+	boolean posteriorMatchhit(double qthr, double lthr) {
+		if (postLen < 0)
+			throw new IllegalStateException("There are no posteriors for the "
+				+"matchhit-method");
+
+		double expected = 0;
+		int chains = 0, inChains = 0;
+		boolean match = false;
+		for (int i = 0; i < postLen; i++) {
+			expected += post[i];
+			boolean m = post[i] >= 0.5;
+			if (m) {
+				inChains++;
+				if (!match)
+					chains++;
+			}
+			match = m;
+		}
+
+		double Q = expected / postLen;
+		double L = (double) inChains / chains;		//NaN without chains
+		return (Q >= qthr && L >= lthr);
+	}
+
+
+
+	/** Encodes a testsequence into dsq for the score-only modes (no
+		backtracking is possible afterwards).
+		@return Length of the sequence*/
+	private int encode(PackedSeq seq) {
+		int l = seq.length();
+		if (dsq.length < l)
+			dsq = new byte[l];
+		seq.codes(dsq);
+		useCheckpoint = useBand = false;
+		len = -1;
+		return l;
+	}
+
+
+
+	/** Saves a forward row as checkpoint c.*/
+	private void saveCheckpoint(int c, double[] m, double[] i, double[] d) {
+		int cols = model.matnr + 1;
+		System.arraycopy(m, 0, cpM[c], 0, cols);
+		System.arraycopy(i, 0, cpI[c], 0, cols);
+		System.arraycopy(d, 0, cpD[c], 0, cols);
+	}
+
+
+
+	/** Calculates the forward rows start..end out of the checkpoint at row
+		start into the rows 0..end-start of the viterbi matrices.*/
+	private void segment(int start, int end, int k) {
+		int cols = model.matnr + 1;
+		System.arraycopy(cpM[start / k], 0, vM[0], 0, cols);
+		System.arraycopy(cpI[start / k], 0, vI[0], 0, cols);
+		System.arraycopy(cpD[start / k], 0, vD[0], 0, cols);
+		for (int i = start + 1; i <= end; i++) {
+			int r = i - start;
+			ForwardKernel.row(model, dsq[i-1], vM[r-1], vI[r-1], vD[r-1],
+				vM[r], vI[r], vD[r]);
+		}
+	}
+
+
+
+	/** Score of the MSV filter (see ViterbiKernel.msv) for a testsequence.
+		No backtracking is possible afterwards.
+		@param seq The testsequence
+		@return Best log-odds score of an ungapped diagonal segment*/
+	double msv(PackedSeq seq) {
+		int l = seq.length();
+		if (dsq.length < l)
+			dsq = new byte[l];
+		seq.codes(dsq);
+		if (sM0 == null || sM0.length < model.matnr + 1)
+			sM0 = new double[model.matnr + 1];
+
+		useCheckpoint = useBand = false;
+		len = -1;
+		return ViterbiKernel.msv(model, dsq, l, sM0, null);
+	}
+
+
+
+	/** Number of sequences that scoreLanes(..) processes at once (1 if the
+		worker has no INTERSEQ kernel).*/
+	int lanes() {
+		return (interseq == null) ? 1 : interseq.V;
+	}
+
+
+
+	/** Score-only mode for up to lanes() sequences at once. Without the
+		INTERSEQ kernel they are scored one after another with score(..).
+		@param seqs Testsequences
+		@param index Indices of the sequences in seqs
+		@param start seqs[index[start]] is the first sequence
+		@param n Number of sequences (at most lanes())
+		@param score Array for the scores, the score of seqs[index[start+l]]
+			is saved in score[index[start+l] - from]
+		@param from Offset of the indices in score*/
+	void scoreLanes(PackedSeq[] seqs, int[] index, int start, int n,
+			double[] score, int from) {
+		if (interseq == null) {
+			for (int l = 0; l < n; l++)
+				score[index[start + l] - from] = score(seqs[index[start + l]]);
+			return;
+		}
+
+		for (int l = 0; l < n; l++) {
+			PackedSeq seq = seqs[index[start + l]];
+			lanelen[l] = seq.length();
+			if (lanedsq[l].length < lanelen[l])
+				lanedsq[l] = new byte[lanelen[l]];
+			seq.codes(lanedsq[l]);
+		}
+
+		interseq.score(lanedsq, lanelen, n, lanescore);
+		for (int l = 0; l < n; l++)
+			score[index[start + l] - from] = lanescore[l];
+
+		//the path can not be backtracked
+		useCheckpoint = useBand = false;
+		len = -1;
+	}
+
+
+
+	/** Decide, whether the last tested sequence is rRNA / Non-rRNA (see
+		protocol) with the "matchhit-method".
+		@param qthr Threshold for Q
+		@param lthr Threshold for L
+		@return True, if (Q >= qthr && L >= lthr) --> rRNA*/
+	boolean matchhitThreshold(double qthr, double lthr) {
+		return PathStats.matchhit(pathStats(), qthr, lthr);
+	}
+
+
+
+	/** Decide, whether the last tested sequence is rRNA / Non-rRNA with the
+		given classifier of the path statistics.
+		@param c Classifier (e.g. PathStats.matchhit(..) or PathStats.score(..))
+		@return True --> rRNA*/
+	boolean classify(PathStats.Classifier c) {
+		return c.isrRNA(pathStats());
+	}
+
+
+
+	/** Number of DP cells calculated for the last sequence of
+		processViterbi(..): with the band all passes (and the MSV filter),
+		with checkpoints the forward pass and the segments that the
+		backtracking calculated again until now, else L * matnr; plus the MSV
+		filter, if the band declined the sequence (0 after the other modes).*/
+	long cells() {
+		if (len < 0)
+			return 0;
+		if (useBand)
+			return banded.cells();
+		if (useCheckpoint)
+			return declined + checkpoint.cells();
+		return declined + (long) len * model.matnr;
+	}
+
+
+
+	/** Backtracks the viterbipath of the last tested sequence and returns its
+		statistics (counted during the traceback, valid until the next
+		backtracking).*/
+	PathStats pathStats() {
+		backtrack();
+		PathStats s = path.stats();
+		s.setScore(score);
+		return s;
+	}
+
+
+
+	/** Backtrack the viterbipath of the last tested sequence into path (with
+		the band, the checkpoints or the full matrices).*/
+	private void backtrack() {
+		if (len < 0)
+			throw new IllegalStateException("There is no path for the "
+				+"matchhit-method after the score-only mode");
+
+		if (useBand)
+			banded.backtrack(len, path);
+		else if (useCheckpoint)
+			checkpoint.backtrack(path);
+		else
+			backtrack(terminalState(), len, model.matnr);
+	}
+
+
+
+	/** Get the terminating state of the last viterbi process.*/
+	private int terminalState() {
+		int l = len, m = model.matnr;
+		return ViterbiKernel.terminalState(vM[l][m], vI[l][m], vD[l][m]);
+	}
+
+
+
+	/** Backtrack the viterbipath iteratively from the end (no limit of the
+		stack for long sequences).
+		@param ter Terminal state (code of StatePath)
+		@param i Character at position i in testseq
+		@param j State at position j*/
+	private void backtrack(int ter, int i, int j) {
+		path.clear(i, j);
+
+		while (i > 0 && j > 0) {
+			path.prepend(ter);
+			//get the state we came from
+			int prev = ViterbiKernel.previous(bt[i][j], ter);
+			if (ter != StatePath.D)
+				i--;
+			if (ter != StatePath.I)
+				j--;
+			ter = prev;
+		}
+
+		//there are no more characters -> so there are deletions, no more
+		//states -> so there are insertions
+		path.prepend(StatePath.D, j);
+		path.prepend(StatePath.I, i);
+	}
+
+
+
+	/** For debug/backtrack purposes. Returns the state path of the last
+		viterbi process (see StatePath.toString).
+		@return State path*/
+	String printStateSeq() {
+		backtrack();
+		return path.toString();
+	}
+
+}